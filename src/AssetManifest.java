@@ -0,0 +1,268 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * AssetManifest maps what the game draws, a kind and a lane or type such as (hold, Up), to an asset id
+ * and the file holding it. The file names in {@code res/} are not consistent ({@code laneUp.PNG} next to
+ * {@code laneLeft.png}), so the build scans the directory once, matching names case-insensitively, and
+ * writes the manifest; the game reads it at startup, checks that every file it names exists, and from
+ * then on draws by id, an index into an array.
+ *
+ * The build runs {@code AssetManifest res res/assets.manifest} after compiling. Manifest rows are
+ * {@code <id>,<kind>,<key>,<file>} with the key in lower case; lines starting with {@code #} are comments.
+ * The game reads the manifest set with {@code -Dshadowdance.assets} (default {@code res/assets.manifest}).
+ */
+public class AssetManifest
+{
+    /**
+     * The kinds of assets. Lanes, notes and hold notes are keyed by lane name; special notes by type
+     * ({@code 2x}, {@code SpeedUp}, {@code SlowDown}, {@code Bomb}); sprites and fonts by file name.
+     */
+    public enum Kind
+    {
+        LANE, NOTE, HOLD, SPECIAL, SPRITE, FONT
+    }
+
+    /**
+     * The assets the game cannot run without, as kind and key.
+     */
+    private final static String[][] REQUIRED = {
+        { "LANE", "left" }, { "LANE", "right" }, { "LANE", "up" }, { "LANE", "down" }, { "LANE", "special" },
+        { "NOTE", "left" }, { "NOTE", "right" }, { "NOTE", "up" }, { "NOTE", "down" },
+        { "HOLD", "left" }, { "HOLD", "right" }, { "HOLD", "up" }, { "HOLD", "down" },
+        { "SPECIAL", "2x" }, { "SPECIAL", "speedup" }, { "SPECIAL", "slowdown" }, { "SPECIAL", "bomb" },
+        { "SPRITE", "background" }, { "SPRITE", "enemy" }, { "SPRITE", "guardian" }, { "SPRITE", "arrow" },
+        { "FONT", "fso8bitr" },
+    };
+
+    private final String[] files;
+    private final Map<String, Integer> ids;
+
+    private AssetManifest(String[] files, Map<String, Integer> ids)
+    {
+        this.files = files;
+        this.ids = ids;
+    }
+
+    private static String key(Kind kind, String key)
+    {
+        return kind + ":" + key.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Looks up the id of an asset. Meant for load time; frames draw by id.
+     * @param kind The kind of asset.
+     * @param key The lane name, note type or file name, in any case.
+     * @return The asset id.
+     * @throws IllegalArgumentException If the manifest has no such asset.
+     */
+    public int id(Kind kind, String key)
+    {
+        Integer id = ids.get(key(kind, key));
+        if (id == null) throw new IllegalArgumentException("no " + kind.name().toLowerCase(Locale.ROOT) + " asset for " + key);
+        return id;
+    }
+
+    /**
+     * @param kind The kind of asset.
+     * @param key The lane name, note type or file name, in any case.
+     * @return True if the manifest has the asset.
+     */
+    public boolean has(Kind kind, String key)
+    {
+        return ids.containsKey(key(kind, key));
+    }
+
+    /**
+     * @param id The asset id.
+     * @return The file holding the asset.
+     */
+    public String file(int id)
+    {
+        return files[id];
+    }
+
+    /**
+     * @return The number of assets; ids run from 0 to this.
+     */
+    public int size()
+    {
+        return files.length;
+    }
+
+    /**
+     * Scans an asset directory, normalizing the file names: extensions and keys are matched case-insensitively,
+     * {@code lane<X>} declares lane X, and {@code note<X>} is the note of lane X or otherwise a special note.
+     * @param dir The asset directory.
+     * @return The assets as kind and key (in lower case) to file, sorted so ids are stable.
+     * @throws IOException If the directory cannot be read, or two files normalize to the same asset.
+     */
+    public static Map<String, String> scan(Path dir) throws IOException
+    {
+        List<Path> paths;
+        try (Stream<Path> list = Files.list(dir)) {
+            paths = list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        Map<String, String> lanes = new HashMap<>();
+        for (Path path : paths)
+        {
+            String[] name = split(path);
+            if (name[1].equals("png") && name[0].startsWith("lane")) lanes.put(name[0].substring(4), path.toString());
+        }
+        Map<String, String> assets = new TreeMap<>();
+        for (Path path : paths)
+        {
+            String[] name = split(path);
+            String base = name[0], kind, key;
+            if (name[1].equals("ttf"))
+            {
+                kind = "FONT";
+                key = base;
+            }
+            else if (!name[1].equals("png")) continue;
+            else if (base.startsWith("lane"))
+            {
+                kind = "LANE";
+                key = base.substring(4);
+            }
+            else if (base.startsWith("holdnote"))
+            {
+                kind = "HOLD";
+                key = base.substring(8);
+            }
+            else if (base.startsWith("note"))
+            {
+                key = base.substring(4);
+                kind = lanes.containsKey(key) && !key.equals("special") ? "NOTE" : "SPECIAL";
+            }
+            else
+            {
+                kind = "SPRITE";
+                key = base;
+            }
+            String file = dir.resolve(path.getFileName()).toString().replace('\\', '/');
+            String previous = assets.put(kind + ":" + key, file);
+            if (previous != null) throw new IOException(previous + " and " + file + " are both the " + kind.toLowerCase(Locale.ROOT) + " asset " + key);
+        }
+        return assets;
+    }
+
+    /**
+     * @return The base name and extension of a file, both in lower case.
+     */
+    private static String[] split(Path path)
+    {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? new String[] { name, "" } : new String[] { name.substring(0, dot), name.substring(dot + 1) };
+    }
+
+    /**
+     * Writes a manifest of scanned assets, numbering them in order.
+     * @param assets The assets, as returned by {@link #scan(Path)}.
+     * @param path The manifest file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Map<String, String> assets, Path path) throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write("# Generated by AssetManifest from the asset directory; do not edit.");
+            writer.newLine();
+            int id = 0;
+            for (Map.Entry<String, String> asset : assets.entrySet())
+            {
+                String[] kindKey = asset.getKey().split(":", 2);
+                writer.write(id++ + "," + kindKey[0].toLowerCase(Locale.ROOT) + "," + kindKey[1] + "," + asset.getValue());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads a manifest and checks it: ids must run from 0 without gaps, every file must exist, and every asset
+     * the game needs must be present.
+     * @param path The manifest file.
+     * @return The manifest.
+     * @throws IOException If the manifest cannot be read or fails the checks.
+     */
+    public static AssetManifest read(Path path) throws IOException
+    {
+        List<String> files = new ArrayList<>();
+        Map<String, Integer> ids = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split(",", 4);
+                if (parts.length != 4) throw new IOException(path + ": malformed row " + line);
+                int id = Integer.parseInt(parts[0].trim());
+                if (id != files.size()) throw new IOException(path + ": expected id " + files.size() + " but found " + id);
+                Kind kind;
+                try {
+                    kind = Kind.valueOf(parts[1].trim().toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(path + ": unknown asset kind " + parts[1]);
+                }
+                String file = parts[3].trim();
+                if (!Files.isRegularFile(Paths.get(file))) throw new IOException(path + ": asset " + id + " is missing: " + file);
+                files.add(file);
+                ids.put(key(kind, parts[2].trim()), id);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(path + ": malformed asset id", e);
+        }
+        for (String[] required : REQUIRED)
+            if (!ids.containsKey(key(Kind.valueOf(required[0]), required[1])))
+                throw new IOException(path + ": no " + required[0].toLowerCase(Locale.ROOT) + " asset for " + required[1]);
+        return new AssetManifest(files.toArray(new String[0]), ids);
+    }
+
+    private static AssetManifest loaded = null;
+
+    /**
+     * Returns the game's manifest, reading it on first use.
+     * @return The manifest.
+     * @throws IllegalStateException If the manifest cannot be read or an asset is missing.
+     */
+    public static synchronized AssetManifest get()
+    {
+        if (loaded == null)
+        {
+            Path path = Paths.get(System.getProperty("shadowdance.assets", "res/assets.manifest"));
+            try {
+                loaded = read(path);
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot load assets (rebuild the manifest with AssetManifest res " + path + "): " + e.getMessage(), e);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Builds the manifest.
+     * @param args {@code <asset directory> <manifest file>}, by default {@code res res/assets.manifest}.
+     * @throws IOException If the directory cannot be scanned or the manifest written or checked.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "res");
+        Path out = Paths.get(args.length > 1 ? args[1] : "res/assets.manifest");
+        Map<String, String> assets = scan(dir);
+        write(assets, out);
+        read(out);
+        System.out.printf("%d assets from %s written to %s%n", assets.size(), dir, out);
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Calibration measures the input latency of this machine end to end. Notes fall onto the hit line at a
+ * steady beat and the player taps along; the offset of every tap from its beat, as polled by the game,
+ * is what judgment sees, so its mean is the offset judgment has to take away.
+ *
+ * Part of the offset is explained by the game loop itself, and is reported separately:
+ * <ul>
+ * <li>frame pacing: a beat becomes visible on the first rendered frame at or after it, measured per beat;</li>
+ * <li>input polling: a key is only seen on the next poll after it is pressed. The expected wait is
+ *     E[T&sup2;] / (2 E[T]) over the measured frame intervals T, which grows with uneven pacing.</li>
+ * </ul>
+ * The rest comes from the display, the input devices and the player.
+ *
+ * Offsets are clamped to {@link #MAX_OFFSET_MICROS} either way, whether measured, loaded or replayed.
+ * The offset is saved per machine to {@code ~/.shadowdance/calibration.properties}, or the file set with
+ * {@code -Dshadowdance.calibration}; {@code -Dshadowdance.calibration=off} disables it. Each instance must
+ * only be used by one thread.
+ */
+public class Calibration
+{
+    /**
+     * The time between beats (120 beats per minute).
+     * The beats at the start that are not measured, while the player finds the beat.
+     * The number of taps measured.
+     * The largest offset judgment applies, in microseconds either way.
+     */
+    public final static long BEAT_NANOS = 500_000_000L;
+    public final static int WARMUP = 4;
+    public final static int TAPS = 32;
+    public final static int MAX_OFFSET_MICROS = 250_000;
+
+    private final long start;
+    private final long[] offsets = new long[TAPS];
+    private int taps = 0;
+    private long lastBeat = -1;
+
+    private long nextShown = WARMUP;
+    private long pacingSum = 0;
+    private int pacingCount = 0;
+
+    private long lastFrame = 0;
+    private double frameSum = 0;
+    private double frameSquares = 0;
+
+    /**
+     * Starts a calibration.
+     * @param start The time of the first beat, from {@link System#nanoTime()}.
+     */
+    public Calibration(long start)
+    {
+        this.start = start;
+    }
+
+    /**
+     * @param beat The beat number.
+     * @return The time the beat is due, from {@link System#nanoTime()}.
+     */
+    public long beatTime(long beat)
+    {
+        return start + beat * BEAT_NANOS;
+    }
+
+    /**
+     * @param now The current time.
+     * @return The number of the first beat due at or after now.
+     */
+    public long nextBeat(long now)
+    {
+        return Math.max(0, Math.floorDiv(now - start + BEAT_NANOS - 1, BEAT_NANOS));
+    }
+
+    /**
+     * Records a rendered frame, for the frame pacing and polling estimates.
+     * @param now The time the frame was polled.
+     */
+    public void frame(long now)
+    {
+        if (done()) return;
+        if (lastFrame != 0)
+        {
+            double interval = now - lastFrame;
+            frameSum += interval;
+            frameSquares += interval * interval;
+        }
+        lastFrame = now;
+        for (; beatTime(nextShown) <= now; ++nextShown)
+        {
+            pacingSum += now - beatTime(nextShown);
+            ++pacingCount;
+        }
+    }
+
+    /**
+     * Records a tap. Taps are matched with the nearest beat; taps during the warm-up and second taps on a beat are ignored.
+     * @param nanos The time the tap was polled.
+     */
+    public void tap(long nanos)
+    {
+        if (done()) return;
+        long beat = Math.round((nanos - start) / (double) BEAT_NANOS);
+        if (beat < WARMUP || beat <= lastBeat) return;
+        lastBeat = beat;
+        offsets[taps++] = nanos - beatTime(beat);
+    }
+
+    /**
+     * @return The number of taps measured so far.
+     */
+    public int taps()
+    {
+        return taps;
+    }
+
+    /**
+     * @return True once every tap has been measured.
+     */
+    public boolean done()
+    {
+        return taps == TAPS;
+    }
+
+    /**
+     * @return The mean offset of the taps in milliseconds, positive when late.
+     */
+    public double meanMillis()
+    {
+        if (taps == 0) return 0;
+        double sum = 0;
+        for (int i = 0; i < taps; ++i) sum += offsets[i];
+        return sum / taps / 1e6;
+    }
+
+    /**
+     * @return The variance of the tap offsets in square milliseconds.
+     */
+    public double varianceMillis()
+    {
+        if (taps < 2) return 0;
+        double mean = meanMillis(), sum = 0;
+        for (int i = 0; i < taps; ++i)
+        {
+            double d = offsets[i] / 1e6 - mean;
+            sum += d * d;
+        }
+        return sum / (taps - 1);
+    }
+
+    /**
+     * @return The mean delay from a beat being due to the first frame showing it, in milliseconds.
+     */
+    public double pacingMillis()
+    {
+        return pacingCount == 0 ? 0 : pacingSum / 1e6 / pacingCount;
+    }
+
+    /**
+     * @return The expected wait from a key press to the poll seeing it, in milliseconds.
+     */
+    public double pollingMillis()
+    {
+        return frameSum == 0 ? 0 : frameSquares / frameSum / 2 / 1e6;
+    }
+
+    /**
+     * @return The offset judgment applies, in microseconds.
+     */
+    public int offsetMicros()
+    {
+        return clamp(Math.round(meanMillis() * 1000));
+    }
+
+    /**
+     * @param micros An input offset in microseconds.
+     * @return The offset clamped to {@link #MAX_OFFSET_MICROS} either way.
+     */
+    public static int clamp(long micros)
+    {
+        return (int) Math.max(-MAX_OFFSET_MICROS, Math.min(MAX_OFFSET_MICROS, micros));
+    }
+
+    /**
+     * @return The lines of the report.
+     */
+    public String[] report()
+    {
+        double mean = meanMillis();
+        return new String[] {
+            String.format("OFFSET %+.1f MS   SD %.1f MS   %d TAPS", mean, Math.sqrt(varianceMillis()), taps),
+            String.format("FRAME PACING   %5.1f MS", pacingMillis()),
+            String.format("INPUT POLLING  %5.1f MS", pollingMillis()),
+            String.format("DISPLAY AND PLAYER %+5.1f MS", mean - pacingMillis() - pollingMillis()),
+        };
+    }
+
+    /**
+     * @return The file the offset of this machine is saved in, or null if calibration is disabled.
+     */
+    public static Path file()
+    {
+        String path = System.getProperty("shadowdance.calibration");
+        if ("off".equals(path)) return null;
+        if (path != null) return Paths.get(path);
+        return Paths.get(System.getProperty("user.home"), ".shadowdance", "calibration.properties");
+    }
+
+    /**
+     * Saves the measured offset as this machine's offset.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save() throws IOException
+    {
+        Path path = file();
+        if (path == null) return;
+        Properties properties = new Properties();
+        properties.setProperty("inputOffsetMicros", Integer.toString(offsetMicros()));
+        properties.setProperty("sdMicros", Long.toString(Math.round(Math.sqrt(varianceMillis()) * 1000)));
+        properties.setProperty("framePacingMicros", Long.toString(Math.round(pacingMillis() * 1000)));
+        properties.setProperty("inputPollingMicros", Long.toString(Math.round(pollingMillis() * 1000)));
+        properties.setProperty("taps", Integer.toString(taps));
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (OutputStream out = Files.newOutputStream(path)) {
+            properties.store(out, "Shadow Dance input calibration");
+        }
+    }
+
+    /**
+     * Loads this machine's offset.
+     * @return The offset in microseconds, clamped; 0 if the machine has not been calibrated or the file cannot be read.
+     */
+    public static int load()
+    {
+        Path path = file();
+        if (path == null || !Files.isRegularFile(path)) return 0;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+            return clamp(Long.parseLong(properties.getProperty("inputOffsetMicros", "0").trim()));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("ignoring calibration " + path + ": " + e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chart is a parsed chart file: its lanes and its notes after the chart transforms have been applied.
+ * A chart is immutable once read, so any number of simulations (the players of a versus game, or the
+ * replays being verified) share one; each simulation keeps only the state of the notes on screen.
+ *
+ * Lanes are declared with {@code Lane,<name>,<x>} rows and notes with {@code <lane>,<type>,<frame>} rows;
+ * rows that are not three fields long are skipped, as {@link ChartLibrary} does. Images are resolved to
+ * asset ids (see {@link AssetManifest}) when the chart is read, so a chart needing a missing asset fails to load.
+ *
+ * A chart declares the features its level uses with {@code Feature,<name>,<1|0>} rows ({@code Enemies},
+ * {@code Specials}, {@code Bombs}, {@code Holds}) and the score that wins it with a {@code Goal,Score,<points>}
+ * row; a simulation only assembles the systems of the declared features. Charts without declarations get the
+ * features and goal of the level they are played at, as before.
+ */
+public class Chart
+{
+    /**
+     * The optional features of a level; normal notes are always played.
+     */
+    public enum Feature
+    {
+        ENEMIES, SPECIALS, BOMBS, HOLDS
+    }
+
+    /**
+     * The features and winning score of levels 1, 2 and 3, for charts that do not declare them.
+     */
+    private final static List<Set<Feature>> LEVEL_FEATURES = Arrays.asList(
+        Collections.unmodifiableSet(EnumSet.of(Feature.BOMBS, Feature.HOLDS)),
+        Collections.unmodifiableSet(EnumSet.of(Feature.SPECIALS, Feature.BOMBS, Feature.HOLDS)),
+        Collections.unmodifiableSet(EnumSet.allOf(Feature.class)));
+    private final static int[] LEVEL_GOALS = { 150, 400, 350 };
+
+    /**
+     * The chart file and the transform list it was read with.
+     */
+    public final String path;
+    public final String transform;
+
+    /**
+     * The play rate set by the transform list (see {@link ChartTransform#rate(String)}): the notes
+     * scroll and the music plays this many times as fast.
+     */
+    public final double rate;
+
+    /**
+     * The X-coordinate of every lane by name.
+     * The lane names, in declaration order; a note's lane is an index into them.
+     * The X-coordinate and image of every lane, by lane index.
+     */
+    private final Map<String, Integer> laneX;
+    private final String[] laneNames;
+    private final int[] laneXs;
+    private final int[] laneImages;
+
+    /**
+     * The declared features, or null if the chart declares none.
+     * The declared winning score, or 0 if the chart declares none.
+     */
+    private final Set<Feature> features;
+    private final int goal;
+
+    /**
+     * The lane index, type, special type ({@code SpeedUp}, {@code SlowDown}, {@code 2x}), spawn frame,
+     * position and image of every note, in file order.
+     * The notes ordered by spawn frame, then file order.
+     */
+    private final int[] lanes;
+    private final Simulation.NoteType[] types;
+    private final String[] specials;
+    private final int[] frames;
+    private final int[] x;
+    private final int[] y;
+    private final int[] images;
+    private final int[] spawnOrder;
+
+    private Chart(String path, String transform, List<ChartTransform.Row> rows) throws IOException
+    {
+        this.path = path;
+        this.transform = transform;
+        this.rate = ChartTransform.rate(transform);
+        Map<String, Integer> laneX = new HashMap<>();
+        List<String> laneNames = new ArrayList<>();
+        List<ChartTransform.Row> notes = new ArrayList<>();
+        Set<Feature> features = null;
+        int goal = 0;
+        for (ChartTransform.Row row : rows)
+        {
+            if (row.isNote())
+            {
+                notes.add(row);
+            }
+            else if (row.isLane())
+            {
+                if (!laneX.containsKey(row.type)) laneNames.add(row.type);
+                laneX.put(row.type, row.frame);
+            }
+            else if (row.lane.equals("Feature"))
+            {
+                if (features == null) features = EnumSet.noneOf(Feature.class);
+                Feature feature;
+                try {
+                    feature = Feature.valueOf(row.type.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(path + ": unknown feature " + row.type);
+                }
+                if (row.frame != 0) features.add(feature);
+                else features.remove(feature);
+            }
+            else if (row.type.equals("Score"))
+            {
+                goal = row.frame;
+            }
+            else throw new IOException(path + ": unknown goal " + row.type);
+        }
+        this.features = features == null ? null : Collections.unmodifiableSet(features);
+        this.goal = goal;
+        this.laneX = Collections.unmodifiableMap(laneX);
+        this.laneNames = laneNames.toArray(new String[0]);
+        AssetManifest assets = AssetManifest.get();
+        laneXs = new int[this.laneNames.length];
+        laneImages = new int[this.laneNames.length];
+        for (int i = 0; i < laneXs.length; ++i)
+        {
+            laneXs[i] = laneX.get(this.laneNames[i]);
+            laneImages[i] = asset(assets, AssetManifest.Kind.LANE, this.laneNames[i]);
+        }
+
+        int n = notes.size();
+        lanes = new int[n];
+        types = new Simulation.NoteType[n];
+        specials = new String[n];
+        frames = new int[n];
+        x = new int[n];
+        y = new int[n];
+        images = new int[n];
+        for (int i = 0; i < n; ++i)
+        {
+            ChartTransform.Row row = notes.get(i);
+            String lane = row.lane;
+            specials[i] = "";
+            frames[i] = row.frame;
+            y[i] = 24;
+            switch (row.type)
+            {
+            case "Hold":
+                types[i] = Simulation.NoteType.HOLD;
+                images[i] = asset(assets, AssetManifest.Kind.HOLD, lane);
+                break;
+            case "Normal":
+                types[i] = Simulation.NoteType.NORMAL;
+                images[i] = asset(assets, AssetManifest.Kind.NOTE, lane);
+                y[i] = 100;
+                break;
+            case "Bomb":
+                types[i] = Simulation.NoteType.BOMB;
+                images[i] = asset(assets, AssetManifest.Kind.SPECIAL, "Bomb");
+                break;
+            default:
+                types[i] = Simulation.NoteType.SPECIAL;
+                specials[i] = row.type;
+                images[i] = asset(assets, AssetManifest.Kind.SPECIAL, row.type);
+                lane = "Special";
+                y[i] = 100;
+                break;
+            }
+            lanes[i] = laneNames.indexOf(lane);
+            if (lanes[i] < 0) throw new IOException(path + ": note at frame " + row.frame + " in undeclared lane " + lane);
+            x[i] = laneX.get(lane);
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; ++i) order[i] = i;
+        Arrays.sort(order, (a, b) -> frames[a] != frames[b] ? Integer.compare(frames[a], frames[b]) : Integer.compare(a, b));
+        spawnOrder = new int[n];
+        for (int i = 0; i < n; ++i) spawnOrder[i] = order[i];
+    }
+
+    /**
+     * Looks up an asset the chart needs.
+     * @throws IOException If there is no such asset.
+     */
+    private int asset(AssetManifest assets, AssetManifest.Kind kind, String key) throws IOException
+    {
+        if (!assets.has(kind, key)) throw new IOException(path + ": no " + kind.name().toLowerCase() + " image for " + key);
+        return assets.id(kind, key);
+    }
+
+    /**
+     * Reads a chart file, passing every row through a transform list (see {@link ChartTransform#parse(String)}).
+     * {@code DoubleScore} notes are read as {@code 2x}.
+     * @param path The chart file.
+     * @param transform The transform list, or null for none.
+     * @return The chart.
+     * @throws IOException If the file cannot be read, the transform list or a row is malformed, a note is in a lane the chart does not declare,
+     *                     a feature or goal is unknown, or an image the chart needs is missing.
+     */
+    public static Chart read(String path, String transform) throws IOException
+    {
+        ChartTransform transforms;
+        try {
+            transforms = ChartTransform.parse(transform);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(path + ": bad chart transform " + transform + ": " + e.getMessage());
+        }
+        List<ChartTransform.Row> rows = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(",");
+                if (parts.length != 3) continue;
+                ChartTransform.Row row = new ChartTransform.Row();
+                row.lane = parts[0].trim();
+                row.type = parts[1].trim();
+                try {
+                    row.frame = Integer.parseInt(parts[2].trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ": malformed row " + line);
+                }
+                if (row.type.equals("DoubleScore")) row.type = "2x";
+                if (transforms.apply(row)) rows.add(row);
+            }
+        }
+        return new Chart(path, transform, rows);
+    }
+
+    /**
+     * Returns the level a chart declaring features is listed at: the first level whose rules include them all.
+     * @param features The declared features.
+     * @return The level.
+     */
+    public static int levelOf(Set<Feature> features)
+    {
+        for (int level = 1; level < LEVEL_FEATURES.size(); ++level)
+            if (LEVEL_FEATURES.get(level - 1).containsAll(features)) return level;
+        return LEVEL_FEATURES.size();
+    }
+
+    /**
+     * Returns the features a level of this chart uses: the declared ones, or those of the level it is played at.
+     * @param level The level the chart is played at.
+     * @return The features; unmodifiable.
+     * @throws IllegalArgumentException If the chart declares no features and there is no such level.
+     */
+    public Set<Feature> features(int level)
+    {
+        if (features != null) return features;
+        if (level < 1 || level > LEVEL_FEATURES.size()) throw new IllegalArgumentException("no rules for level " + level);
+        return LEVEL_FEATURES.get(level - 1);
+    }
+
+    /**
+     * Returns the score that wins a level of this chart: the declared one, or that of the level it is played at.
+     * @param level The level the chart is played at.
+     * @return The winning score.
+     * @throws IllegalArgumentException If the chart declares no goal and there is no such level.
+     */
+    public int goal(int level)
+    {
+        if (goal != 0) return goal;
+        if (level < 1 || level > LEVEL_GOALS.length) throw new IllegalArgumentException("no rules for level " + level);
+        return LEVEL_GOALS[level - 1];
+    }
+
+    /**
+     * @return The X-coordinate of every lane by name; unmodifiable.
+     */
+    public Map<String, Integer> laneX()
+    {
+        return laneX;
+    }
+
+    /**
+     * @return The number of lanes.
+     */
+    public int laneCount()
+    {
+        return laneNames.length;
+    }
+
+    /**
+     * @param lane The lane index.
+     * @return The lane name.
+     */
+    public String laneName(int lane)
+    {
+        return laneNames[lane];
+    }
+
+    /**
+     * @param lane The lane index.
+     * @return The X-coordinate of the lane.
+     */
+    public int laneX(int lane)
+    {
+        return laneXs[lane];
+    }
+
+    /**
+     * @param lane The lane index.
+     * @return The asset id of the lane's image.
+     */
+    public int laneImage(int lane)
+    {
+        return laneImages[lane];
+    }
+
+    /**
+     * @return The number of notes.
+     */
+    public int noteCount()
+    {
+        return frames.length;
+    }
+
+    /**
+     * @param note The note index, in file order.
+     * @return The index of the note's lane; special notes are in the {@code Special} lane.
+     */
+    public int lane(int note)
+    {
+        return lanes[note];
+    }
+
+    /**
+     * @param note The note index.
+     * @return The note type.
+     */
+    public Simulation.NoteType type(int note)
+    {
+        return types[note];
+    }
+
+    /**
+     * @param note The note index.
+     * @return The special type ({@code SpeedUp}, {@code SlowDown}, {@code 2x}), or "" for other notes.
+     */
+    public String special(int note)
+    {
+        return specials[note];
+    }
+
+    /**
+     * @param note The note index.
+     * @return The spawn frame.
+     */
+    public int frame(int note)
+    {
+        return frames[note];
+    }
+
+    /**
+     * @param note The note index.
+     * @return The X-coordinate of the note.
+     */
+    public int x(int note)
+    {
+        return x[note];
+    }
+
+    /**
+     * @param note The note index.
+     * @return The Y-coordinate the note spawns at.
+     */
+    public int y(int note)
+    {
+        return y[note];
+    }
+
+    /**
+     * @param note The note index.
+     * @return The asset id of the image the note is drawn with.
+     */
+    public int image(int note)
+    {
+        return images[note];
+    }
+
+    /**
+     * @param rank The position in spawn order.
+     * @return The index of the note that spawns at that position; notes spawning on the same frame keep file order.
+     */
+    public int spawnOrder(int rank)
+    {
+        return spawnOrder[rank];
+    }
+}
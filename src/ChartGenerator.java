@@ -0,0 +1,419 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * ChartGenerator writes a playable chart for a music track by detecting its onsets.
+ *
+ * The WAV file is streamed in fixed segments of {@link #SEGMENT} analysis windows. Each segment becomes a
+ * task on the fork/join pool that computes the FFT of its windows (2048 samples, hop 512, Hann window) and
+ * the spectral flux, the rise in log magnitude from the previous window, in four frequency bands. Segments
+ * carry the samples their first window overlaps with, so they are independent; at most two segments per core
+ * are in flight, so memory stays flat however long the track is.
+ *
+ * Onsets are the peaks of the total flux above a moving-average threshold. Each becomes a normal note in the
+ * lane of the band that rose the most (bass on the left, treble on the right), unless that lane would overlap
+ * its previous note. Notes are quantized to the frame they must spawn on to reach the hit line on the onset
+ * at the given scroll speed.
+ *
+ * {@code java ChartGenerator [--speed <px/frame>] [--sensitivity <k>] [--mingap <frames>] <track.wav> <chart.csv>}
+ */
+public class ChartGenerator
+{
+    /**
+     * The analysis window and hop in samples, and the number of windows per segment task.
+     */
+    private final static int WINDOW = 2048;
+    private final static int HOP = 512;
+    private final static int SEGMENT = 256;
+
+    /**
+     * The lower edge of each flux band in Hz, the lanes the bands map to, and their X-coordinates.
+     */
+    private final static double[] BAND_EDGES = { 30, 150, 600, 2500, 10000 };
+    private final static int BANDS = BAND_EDGES.length - 1;
+    private final static String[] LANES = { "Left", "Up", "Down", "Right" };
+    private final static int[] LANE_X = { 282, 432, 592, 742 };
+
+    /**
+     * The height of a note, which two notes in a lane must be apart to not overlap.
+     * The Y-coordinate normal notes spawn at.
+     */
+    private final static int NOTE_HEIGHT = 100;
+    private final static int SPAWN_Y = 100;
+
+    private final static double[] HANN = new double[WINDOW];
+    private final static double[] COS = new double[WINDOW / 2];
+    private final static double[] SIN = new double[WINDOW / 2];
+    private final static int[] REVERSED = new int[WINDOW];
+
+    static
+    {
+        for (int i = 0; i < WINDOW; ++i) HANN[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / WINDOW);
+        for (int i = 0; i < WINDOW / 2; ++i)
+        {
+            COS[i] = Math.cos(-2 * Math.PI * i / WINDOW);
+            SIN[i] = Math.sin(-2 * Math.PI * i / WINDOW);
+        }
+        int bits = Integer.numberOfTrailingZeros(WINDOW);
+        for (int i = 0; i < WINDOW; ++i) REVERSED[i] = Integer.reverse(i) >>> (32 - bits);
+    }
+
+    /**
+     * The scroll speed in pixels per frame, the threshold factor over the moving average of the flux,
+     * and the minimum number of frames between two notes.
+     */
+    private final int speed;
+    private final double sensitivity;
+    private final int minGap;
+
+    public ChartGenerator(int speed, double sensitivity, int minGap)
+    {
+        this.speed = speed;
+        this.sensitivity = sensitivity;
+        this.minGap = minGap;
+    }
+
+    /**
+     * The spectral flux of a track.
+     */
+    public static class Flux
+    {
+        /**
+         * The sample rate, the number of windows, and for every window the total flux followed by the flux per band.
+         */
+        public final float rate;
+        public final int windows;
+        public final float[] values;
+
+        private Flux(float rate, int windows, float[] values)
+        {
+            this.rate = rate;
+            this.windows = windows;
+            this.values = values;
+        }
+
+        /**
+         * @param window The window.
+         * @return The time of the window's centre in seconds.
+         */
+        public double seconds(int window)
+        {
+            return ((double) window * HOP + WINDOW / 2) / rate;
+        }
+
+        public float total(int window)
+        {
+            return values[window * (BANDS + 1)];
+        }
+
+        public float band(int window, int band)
+        {
+            return values[window * (BANDS + 1) + 1 + band];
+        }
+    }
+
+    /**
+     * Computes the spectral flux of the windows of one segment. The samples start {@code WINDOW} samples before
+     * the segment's new samples, and window w of the track starts at sample {@code w * HOP}.
+     */
+    private static class SegmentTask extends RecursiveTask<float[]>
+    {
+        private final static long serialVersionUID = 1L;
+
+        private final float[] samples;
+        private final int firstWindow;
+        private final long firstSample;
+        private final float rate;
+
+        private SegmentTask(float[] samples, int firstWindow, long firstSample, float rate)
+        {
+            this.samples = samples;
+            this.firstWindow = firstWindow;
+            this.firstSample = firstSample;
+            this.rate = rate;
+        }
+
+        @Override
+        protected float[] compute()
+        {
+            float[] flux = new float[SEGMENT * (BANDS + 1)];
+            double[] re = new double[WINDOW], im = new double[WINDOW];
+            double[] previous = new double[WINDOW / 2], current = new double[WINDOW / 2];
+            int[] bandOf = new int[WINDOW / 2];
+            for (int b = 0; b < WINDOW / 2; ++b)
+            {
+                double hz = b * rate / WINDOW;
+                bandOf[b] = -1;
+                for (int band = 0; band < BANDS; ++band)
+                    if (hz >= BAND_EDGES[band] && hz < BAND_EDGES[band + 1]) bandOf[b] = band;
+            }
+            spectrum(firstWindow - 1, re, im, previous);
+            for (int i = 0; i < SEGMENT; ++i)
+            {
+                spectrum(firstWindow + i, re, im, current);
+                for (int b = 0; b < WINDOW / 2; ++b)
+                {
+                    double rise = current[b] - previous[b];
+                    if (rise <= 0 || bandOf[b] < 0) continue;
+                    flux[i * (BANDS + 1)] += rise;
+                    flux[i * (BANDS + 1) + 1 + bandOf[b]] += rise;
+                }
+                double[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            return flux;
+        }
+
+        /**
+         * Computes the log magnitude spectrum of a window.
+         */
+        private void spectrum(int window, double[] re, double[] im, double[] magnitude)
+        {
+            int offset = (int) (window * (long) HOP - firstSample);
+            for (int i = 0; i < WINDOW; ++i)
+            {
+                int s = offset + i;
+                re[REVERSED[i]] = s >= 0 && s < samples.length ? samples[s] * HANN[i] : 0;
+                im[i] = 0;
+            }
+            fft(re, im);
+            for (int b = 0; b < WINDOW / 2; ++b)
+                magnitude[b] = Math.log1p(100 * Math.sqrt(re[b] * re[b] + im[b] * im[b]) / (WINDOW / 2));
+        }
+    }
+
+    /**
+     * An in-place radix-2 FFT of input already in bit-reversed order.
+     */
+    private static void fft(double[] re, double[] im)
+    {
+        for (int size = 2; size <= WINDOW; size <<= 1)
+        {
+            int half = size / 2, step = WINDOW / size;
+            for (int start = 0; start < WINDOW; start += size)
+                for (int k = 0; k < half; ++k)
+                {
+                    double wr = COS[k * step], wi = SIN[k * step];
+                    int a = start + k, b = a + half;
+                    double tr = re[b] * wr - im[b] * wi, ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+        }
+    }
+
+    /**
+     * Streams a WAV file through the segment tasks.
+     * @param file The WAV file.
+     * @param pool The pool running the segment tasks.
+     * @return The spectral flux of the track.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Flux analyze(Path file, ForkJoinPool pool) throws IOException
+    {
+        AudioInputStream source;
+        try {
+            source = AudioSystem.getAudioInputStream(file.toFile());
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("cannot read " + file + ": " + e.getMessage(), e);
+        }
+        AudioFormat sourceFormat = source.getFormat();
+        AudioFormat format = new AudioFormat(sourceFormat.getSampleRate(), 16, sourceFormat.getChannels(), true, false);
+        int channels = format.getChannels();
+        ArrayDeque<ForkJoinTask<float[]>> inFlight = new ArrayDeque<>();
+        List<float[]> segments = new ArrayList<>();
+        long totalSamples = 0;
+        try (InputStream in = AudioSystem.getAudioInputStream(format, source)) {
+            byte[] bytes = new byte[SEGMENT * HOP * channels * 2];
+            float[] tail = new float[WINDOW];
+            boolean ended = false;
+            for (int segment = 0; ; ++segment)
+            {
+                long firstNew = (long) segment * SEGMENT * HOP;
+                if (ended && firstNew >= totalSamples + WINDOW) break;
+                float[] samples = Arrays.copyOf(tail, WINDOW + SEGMENT * HOP);
+                int read = ended ? 0 : in.readNBytes(bytes, 0, bytes.length);
+                if (read < bytes.length) ended = true;
+                int frames = read / (channels * 2);
+                for (int i = 0; i < frames; ++i)
+                {
+                    int sum = 0;
+                    for (int c = 0; c < channels; ++c)
+                    {
+                        int at = (i * channels + c) * 2;
+                        sum += (short) ((bytes[at] & 0xFF) | bytes[at + 1] << 8);
+                    }
+                    samples[WINDOW + i] = sum / (32768f * channels);
+                }
+                totalSamples += frames;
+                System.arraycopy(samples, SEGMENT * HOP, tail, 0, WINDOW);
+                inFlight.add(pool.submit(new SegmentTask(samples, (int) ((firstNew - WINDOW) / HOP) + 1, firstNew - WINDOW, format.getSampleRate())));
+                if (inFlight.size() >= 2 * pool.getParallelism()) segments.add(inFlight.poll().get());
+            }
+            while (!inFlight.isEmpty()) segments.add(inFlight.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted analysing " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("cannot analyse " + file, e.getCause());
+        }
+        int windows = (int) ((totalSamples + HOP - 1) / HOP);
+        float[] values = new float[windows * (BANDS + 1)];
+        int offset = (1 - WINDOW / HOP) * (BANDS + 1);
+        for (float[] segment : segments)
+        {
+            int from = Math.max(0, -offset), to = Math.min(segment.length, values.length - offset);
+            if (from < to) System.arraycopy(segment, from, values, offset + from, to - from);
+            offset += segment.length;
+        }
+        return new Flux(format.getSampleRate(), windows, values);
+    }
+
+    /**
+     * Picks the onsets: windows whose total flux is the largest within 3 windows on either side and above
+     * the average of the surrounding half second times the sensitivity.
+     * @param flux The spectral flux.
+     * @return The onset windows, in order.
+     */
+    public List<Integer> onsets(Flux flux)
+    {
+        int radius = Math.max(1, Math.round(0.25f * flux.rate / HOP));
+        double[] prefix = new double[flux.windows + 1];
+        for (int w = 0; w < flux.windows; ++w) prefix[w + 1] = prefix[w] + flux.total(w);
+        double mean = prefix[flux.windows] / Math.max(1, flux.windows);
+        List<Integer> onsets = new ArrayList<>();
+        for (int w = 1; w < flux.windows; ++w)
+        {
+            float value = flux.total(w);
+            int from = Math.max(0, w - radius), to = Math.min(flux.windows, w + radius + 1);
+            double threshold = sensitivity * (prefix[to] - prefix[from]) / (to - from) + 0.1 * mean;
+            if (value <= threshold) continue;
+            boolean peak = true;
+            for (int n = Math.max(0, w - 3); n <= Math.min(flux.windows - 1, w + 3) && peak; ++n)
+                if (flux.total(n) > value || (flux.total(n) == value && n < w)) peak = false;
+            if (peak) onsets.add(w);
+        }
+        return onsets;
+    }
+
+    /**
+     * Estimates the tempo from the autocorrelation of the total flux, less its mean, between 60 and 200 beats per minute.
+     * @param flux The spectral flux.
+     * @return The tempo in beats per minute.
+     */
+    public static double tempo(Flux flux)
+    {
+        double mean = 0;
+        for (int w = 0; w < flux.windows; ++w) mean += flux.total(w);
+        mean /= Math.max(1, flux.windows);
+        double best = 0, bestBpm = 0;
+        for (int lag = Math.max(1, (int) (60 / 200.0 * flux.rate / HOP)); lag <= 60 / 60.0 * flux.rate / HOP; ++lag)
+        {
+            double sum = 0;
+            for (int w = lag; w < flux.windows; ++w) sum += (flux.total(w) - mean) * (flux.total(w - lag) - mean);
+            sum /= flux.windows - lag;
+            if (sum > best)
+            {
+                best = sum;
+                bestBpm = 60 * flux.rate / HOP / lag;
+            }
+        }
+        return bestBpm;
+    }
+
+    /**
+     * Turns onsets into notes and writes the chart.
+     * @param flux The spectral flux.
+     * @param onsets The onset windows.
+     * @param out The chart file.
+     * @return The number of notes written.
+     * @throws IOException If the chart cannot be written.
+     */
+    public int write(Flux flux, List<Integer> onsets, Path out) throws IOException
+    {
+        int travel = Math.round((float) (Simulation.HIT_LINE - SPAWN_Y) / speed);
+        int laneGap = (NOTE_HEIGHT + speed - 1) / speed;
+        int[] lastInLane = new int[BANDS];
+        Arrays.fill(lastInLane, Integer.MIN_VALUE / 2);
+        int lastNote = Integer.MIN_VALUE / 2, notes = 0;
+        if (out.getParent() != null) Files.createDirectories(out.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(out)) {
+            for (int lane = 0; lane < BANDS; ++lane)
+            {
+                writer.write("Lane," + LANES[lane] + "," + LANE_X[lane]);
+                writer.newLine();
+            }
+            for (int w : onsets)
+            {
+                int frame = (int) Math.round(flux.seconds(w) * Simulation.FRAME_RATE) - travel;
+                if (frame < 0 || frame - lastNote < minGap) continue;
+                int lane = -1;
+                for (int band = 0; band < BANDS; ++band)
+                    if (frame - lastInLane[band] >= laneGap && (lane < 0 || flux.band(w, band) > flux.band(w, lane))) lane = band;
+                if (lane < 0) continue;
+                writer.write(LANES[lane] + ",Normal," + frame);
+                writer.newLine();
+                lastInLane[lane] = lastNote = frame;
+                ++notes;
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Generates a chart for a track and prints what was found and how long it took.
+     * @param args {@code [--speed <px/frame>] [--sensitivity <k>] [--mingap <frames>] <track.wav> <chart.csv>};
+     *             by default speed 4, sensitivity 1.5 and 8 frames.
+     * @throws IOException If the track cannot be read or the chart written.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int speed = 4, minGap = 8;
+        double sensitivity = 1.5;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("--speed") && i + 1 < args.length) speed = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--sensitivity") && i + 1 < args.length) sensitivity = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--mingap") && i + 1 < args.length) minGap = Integer.parseInt(args[++i]);
+            else files.add(args[i]);
+        }
+        if (files.size() != 2 || speed <= 0)
+        {
+            System.err.println("usage: ChartGenerator [--speed <px/frame>] [--sensitivity <k>] [--mingap <frames>] <track.wav> <chart.csv>");
+            return;
+        }
+        ChartGenerator generator = new ChartGenerator(speed, sensitivity, minGap);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        long start = System.nanoTime();
+        Flux flux = analyze(Paths.get(files.get(0)), pool);
+        long analysed = System.nanoTime();
+        List<Integer> onsets = generator.onsets(flux);
+        int notes = generator.write(flux, onsets, Paths.get(files.get(1)));
+        long end = System.nanoTime();
+        System.out.printf("%s: %.1f s of audio, %d windows, %d onsets, %.0f bpm, %d notes written to %s%n", files.get(0),
+                          flux.seconds(flux.windows), flux.windows, onsets.size(), tempo(flux), notes, files.get(1));
+        System.out.printf("analysis %.2f s, chart %.2f s on %d threads%n", (analysed - start) / 1e9, (end - analysed) / 1e9,
+                          pool.getParallelism());
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ChartLibrary indexes the charts in a directory for the level-select screen.
+ * Chart metadata is extracted in parallel and cached in a compact binary index file; on the next scan
+ * only charts whose size or modification time changed are parsed again.
+ */
+public class ChartLibrary
+{
+    private final static int MAGIC = 0x53444349; // "SDCI"
+    private final static int VERSION = 2;
+
+    /**
+     * The game runs at 60 frames per second; used to turn frames into seconds.
+     */
+    public final static double FRAMES_PER_SECOND = 60.0;
+
+    /**
+     * The metadata of one chart.
+     */
+    public static class ChartInfo
+    {
+        /**
+         * The chart file, its size and modification time when it was indexed.
+         * The lanes declared by the chart, one bit per lane id (see {@link EventLog#laneId(String)}).
+         * The number of notes, the frame of the last note and the notes per second.
+         * The level whose rules the chart is played with (1, 2 or 3).
+         */
+        public final String path;
+        public final long size;
+        public final long modified;
+        public final int lanes;
+        public final int noteCount;
+        public final int length;
+        public final float density;
+        public final int level;
+
+        public ChartInfo(String path, long size, long modified, int lanes, int noteCount, int length, float density, int level)
+        {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.lanes = lanes;
+            this.noteCount = noteCount;
+            this.length = length;
+            this.density = density;
+            this.level = level;
+        }
+
+        /**
+         * @return The chart name shown in the level select.
+         */
+        public String name()
+        {
+            return ChartLibrary.name(path);
+        }
+
+        /**
+         * @return The number of lanes the chart declares.
+         */
+        public int laneCount()
+        {
+            return Integer.bitCount(lanes);
+        }
+
+        /**
+         * @return The length of the chart in seconds.
+         */
+        public double seconds()
+        {
+            return length / FRAMES_PER_SECOND;
+        }
+    }
+
+    private ChartLibrary()
+    {
+    }
+
+    /**
+     * Returns the name of a chart, which is also its id: the file name without its directory and {@code .csv}.
+     * @param path The chart file.
+     * @return The chart name.
+     */
+    public static String name(String path)
+    {
+        String file = Paths.get(path).getFileName().toString();
+        return file.endsWith(".csv") ? file.substring(0, file.length() - 4) : file;
+    }
+
+    /**
+     * Scans a chart directory, reusing the index entries of unchanged charts and parsing the others in
+     * parallel. The index file is rewritten only if a chart was added, changed or removed.
+     * @param dir The directory holding the {@code .csv} charts.
+     * @param indexFile The index file.
+     * @return The charts sorted by name; charts that cannot be read are reported and skipped.
+     * @throws IOException If the directory cannot be listed.
+     */
+    public static List<ChartInfo> scan(Path dir, Path indexFile) throws IOException
+    {
+        Map<String, ChartInfo> index = readIndex(indexFile);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(f -> f.toString().endsWith(".csv")).sorted().collect(Collectors.toList());
+        }
+
+        List<ChartInfo> charts = files.parallelStream().map(file -> {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                long modified = attributes.lastModifiedTime().toMillis();
+                ChartInfo cached = index.get(file.toString());
+                if (cached != null && cached.size == attributes.size() && cached.modified == modified) return cached;
+                return parse(file, attributes.size(), modified);
+            } catch (IOException e) {
+                System.err.println("skipping chart " + file + ": " + e.getMessage());
+                return null;
+            }
+        }).filter(Objects::nonNull).collect(Collectors.toList());
+
+        boolean changed = charts.size() != index.size();
+        for (ChartInfo chart : charts) changed |= index.get(chart.path) != chart;
+        if (changed) writeIndex(indexFile, charts);
+        charts.sort(Comparator.comparing(ChartInfo::name));
+        return charts;
+    }
+
+    /**
+     * Scans the directory configured by {@code -Dshadowdance.charts} (default {@code res}), keeping its
+     * index in {@code .chartindex}.
+     * @return The charts sorted by name, or an empty list if the directory cannot be read.
+     */
+    public static List<ChartInfo> scanDefault()
+    {
+        try {
+            return scan(Paths.get(System.getProperty("shadowdance.charts", "res")), Paths.get(".chartindex"));
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Extracts the metadata of a chart in one pass over its lines.
+     * @param file The chart file.
+     * @param size The size of the file.
+     * @param modified The modification time of the file.
+     * @return The chart metadata.
+     * @throws IOException If the file cannot be read or a frame or X-coordinate is not a number.
+     */
+    public static ChartInfo parse(Path file, long size, long modified) throws IOException
+    {
+        int lanes = 0, notes = 0, length = 0;
+        Set<Chart.Feature> features = null;
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(",");
+                if (parts.length != 3) continue;
+                String laneName = parts[0].trim();
+                if (laneName.equals("Lane"))
+                {
+                    lanes |= 1 << EventLog.laneId(parts[1].trim());
+                    continue;
+                }
+                if (laneName.equals("Goal")) continue;
+                int value;
+                try {
+                    value = Integer.parseInt(parts[2].trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("malformed row " + line);
+                }
+                if (laneName.equals("Feature"))
+                {
+                    if (features == null) features = EnumSet.noneOf(Chart.Feature.class);
+                    Chart.Feature feature;
+                    try {
+                        feature = Chart.Feature.valueOf(parts[1].trim().toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("unknown feature " + line);
+                    }
+                    if (value != 0) features.add(feature);
+                    else features.remove(feature);
+                    continue;
+                }
+                ++notes;
+                length = Math.max(length, value);
+            }
+        }
+        float density = length == 0 ? 0 : (float) (notes / (length / FRAMES_PER_SECOND));
+        return new ChartInfo(file.toString(), size, modified, lanes, notes, length, density, levelOf(features, lanes));
+    }
+
+    /**
+     * Picks the level a chart is listed and played at: for a chart declaring its features, the first level
+     * whose rules include them (see {@link Chart#levelOf(Set)}); the declarations, not the level, decide
+     * what is played. A chart without declarations is played with the rules of level 2 when it has a
+     * special lane and level 1 when it does not.
+     * @param features The declared features, or null if the chart declares none.
+     * @param lanes The lanes the chart declares.
+     * @return The level.
+     */
+    private static int levelOf(Set<Chart.Feature> features, int lanes)
+    {
+        if (features != null) return Chart.levelOf(features);
+        return (lanes & 1 << EventLog.laneId("Special")) != 0 ? 2 : 1;
+    }
+
+    /**
+     * Reads the index file.
+     * @param indexFile The index file.
+     * @return The entries by chart path, empty if the file is missing or unreadable.
+     */
+    private static Map<String, ChartInfo> readIndex(Path indexFile)
+    {
+        Map<String, ChartInfo> index = new HashMap<>();
+        if (!Files.exists(indexFile)) return index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return index;
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i)
+            {
+                ChartInfo chart = new ChartInfo(in.readUTF(), in.readLong(), in.readLong(), in.readInt(),
+                                                in.readInt(), in.readInt(), in.readFloat(), in.readByte());
+                index.put(chart.path, chart);
+            }
+        } catch (IOException e) {
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index file.
+     * @param indexFile The index file.
+     * @param charts The charts to write.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void writeIndex(Path indexFile, List<ChartInfo> charts) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(charts.size());
+            for (ChartInfo chart : charts)
+            {
+                out.writeUTF(chart.path);
+                out.writeLong(chart.size);
+                out.writeLong(chart.modified);
+                out.writeInt(chart.lanes);
+                out.writeInt(chart.noteCount);
+                out.writeInt(chart.length);
+                out.writeFloat(chart.density);
+                out.writeByte(chart.level);
+            }
+        }
+    }
+
+    /**
+     * Scans a chart directory and prints the library.
+     * @param args The chart directory and optionally the index file (default {@code .chartindex}).
+     * @throws IOException If the directory cannot be listed.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("usage: ChartLibrary <chart dir> [index file]");
+            return;
+        }
+        long start = System.nanoTime();
+        List<ChartInfo> charts = scan(Paths.get(args[0]), Paths.get(args.length > 1 ? args[1] : ".chartindex"));
+        double ms = (System.nanoTime() - start) / 1e6;
+        for (ChartInfo chart : charts)
+            System.out.printf("%-24s level %d  lanes %d  notes %5d  %6.1f s  %5.2f notes/s%n", chart.name(),
+                              chart.level, chart.laneCount(), chart.noteCount, chart.seconds(), chart.density);
+        System.out.printf("%d charts in %.1f ms%n", charts.size(), ms);
+    }
+}
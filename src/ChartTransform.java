@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ChartTransform rewrites chart rows between parsing and building notes, so practice variants of a chart
+ * (play rate, mirrored or shuffled lanes, thinned notes) cost nothing during play. Transforms see the
+ * rows one at a time in file order and are chained into one streaming pass.
+ *
+ * Transforms are configured with {@code -Dshadowdance.transform}, a comma separated list of
+ * {@code rate:<factor>}, {@code mirror}, {@code shuffle[:<seed>]} and {@code mingap:<frames>}.
+ */
+public interface ChartTransform
+{
+    /**
+     * One chart row. For lane declarations {@code lane} is {@code "Lane"}, {@code type} the lane name and
+     * {@code frame} its X-coordinate; for notes it is the lane name, the note type and the spawn frame.
+     * Feature and goal declarations ({@code "Feature"}, {@code "Goal"}) carry a name and a value.
+     */
+    class Row
+    {
+        public String lane = "";
+        public String type = "";
+        public int frame = 0;
+
+        /**
+         * @return True if the row declares a lane rather than a note.
+         */
+        public boolean isLane()
+        {
+            return lane.equals("Lane");
+        }
+
+        /**
+         * @return True if the row is a note rather than a lane, feature or goal declaration.
+         */
+        public boolean isNote()
+        {
+            return !isLane() && !lane.equals("Feature") && !lane.equals("Goal");
+        }
+    }
+
+    /**
+     * Rewrites a row in place.
+     * @param row The row to rewrite.
+     * @return False to drop the row from the chart.
+     */
+    boolean apply(Row row);
+
+    /**
+     * The transform that leaves every row unchanged.
+     */
+    ChartTransform IDENTITY = row -> true;
+
+    /**
+     * Chains transforms, applied in order until one drops the row.
+     * @param transforms The transforms.
+     * @return The chained transform.
+     */
+    static ChartTransform chain(List<ChartTransform> transforms)
+    {
+        if (transforms.isEmpty()) return IDENTITY;
+        if (transforms.size() == 1) return transforms.get(0);
+        ChartTransform[] steps = transforms.toArray(new ChartTransform[0]);
+        return row -> {
+            for (ChartTransform step : steps)
+                if (!step.apply(row)) return false;
+            return true;
+        };
+    }
+
+    /**
+     * Parses a transform list such as {@code "rate:1.25,mirror,mingap:12"}. Each call creates fresh
+     * transforms, since lane remapping keeps per-chart state.
+     * @param spec The transform list, or null for none.
+     * @return The chained transform.
+     * @throws IllegalArgumentException If a transform is unknown or malformed.
+     */
+    static ChartTransform parse(String spec)
+    {
+        List<ChartTransform> transforms = new ArrayList<>();
+        if (spec == null || spec.trim().isEmpty()) return IDENTITY;
+        for (String item : spec.split(","))
+        {
+            String[] parts = item.trim().split(":", 2);
+            String arg = parts.length > 1 ? parts[1].trim() : null;
+            switch (parts[0].trim())
+            {
+            case "rate":
+                transforms.add(new Rate(Double.parseDouble(arg)));
+                break;
+            case "mirror":
+                transforms.add(new Mirror());
+                break;
+            case "shuffle":
+                transforms.add(new Shuffle(arg == null ? System.nanoTime() : Long.parseLong(arg)));
+                break;
+            case "mingap":
+                transforms.add(new MinGap(Integer.parseInt(arg)));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown chart transform: " + item);
+            }
+        }
+        return chain(transforms);
+    }
+
+    /**
+     * Gives every {@code shuffle} without a seed a fresh one, so the resolved list parses to the same
+     * transforms every time; replays record the resolved list.
+     * @param spec The transform list, or null for none.
+     * @return The resolved transform list, "" for none.
+     */
+    static String resolve(String spec)
+    {
+        if (spec == null || spec.trim().isEmpty()) return "";
+        StringBuilder resolved = new StringBuilder();
+        for (String item : spec.split(","))
+        {
+            if (resolved.length() > 0) resolved.append(',');
+            resolved.append(item.trim());
+            if (item.trim().equals("shuffle")) resolved.append(':').append(System.nanoTime());
+        }
+        return resolved.toString();
+    }
+
+    /**
+     * Returns the play rate of a transform list: the product of its {@code rate} factors.
+     * @param spec The transform list, or null for none.
+     * @return The play rate, 1 for none.
+     * @throws IllegalArgumentException If a rate is malformed.
+     */
+    static double rate(String spec)
+    {
+        double rate = 1;
+        if (spec == null || spec.trim().isEmpty()) return rate;
+        for (String item : spec.split(","))
+        {
+            String[] parts = item.trim().split(":", 2);
+            if (parts[0].trim().equals("rate") && parts.length > 1) rate *= Double.parseDouble(parts[1].trim());
+        }
+        return rate;
+    }
+
+    /**
+     * Plays the chart at a different rate by scaling the spawn frames; 1.25 plays 25% faster.
+     * Only the notes are rewritten here: the simulation scrolls {@link Chart#rate} times faster, so
+     * notes still reach the hit line on the song time they were charted for, and the mixer resamples
+     * the music by the same factor.
+     */
+    class Rate implements ChartTransform
+    {
+        private final double rate;
+
+        public Rate(double rate)
+        {
+            if (rate <= 0) throw new IllegalArgumentException("rate must be positive: " + rate);
+            this.rate = rate;
+        }
+
+        @Override
+        public boolean apply(Row row)
+        {
+            if (row.isNote()) row.frame = (int) Math.round(row.frame / rate);
+            return true;
+        }
+    }
+
+    /**
+     * Moves notes between the playable lanes. The lanes are ordered by their X-coordinate when the first
+     * note arrives, which works because charts declare their lanes first; the special lane is never remapped.
+     */
+    abstract class LaneRemap implements ChartTransform
+    {
+        private final Map<String, Integer> laneX = new HashMap<>();
+        private Map<String, String> mapping = null;
+
+        /**
+         * Builds the remapping.
+         * @param lanes The playable lanes, left to right.
+         * @return The lane each of them moves to.
+         */
+        protected abstract String[] remap(String[] lanes);
+
+        @Override
+        public boolean apply(Row row)
+        {
+            if (row.isLane())
+            {
+                if (!row.type.equals("Special")) laneX.put(row.type, row.frame);
+                return true;
+            }
+            if (!row.isNote()) return true;
+            if (mapping == null)
+            {
+                String[] lanes = laneX.keySet().toArray(new String[0]);
+                Arrays.sort(lanes, Comparator.comparing(laneX::get));
+                String[] targets = remap(lanes.clone());
+                mapping = new HashMap<>();
+                for (int i = 0; i < lanes.length; ++i) mapping.put(lanes[i], targets[i]);
+            }
+            String target = mapping.get(row.lane);
+            if (target != null) row.lane = target;
+            return true;
+        }
+    }
+
+    /**
+     * Mirrors the playable lanes left to right.
+     */
+    class Mirror extends LaneRemap
+    {
+        @Override
+        protected String[] remap(String[] lanes)
+        {
+            for (int i = 0, j = lanes.length - 1; i < j; ++i, --j)
+            {
+                String tmp = lanes[i];
+                lanes[i] = lanes[j];
+                lanes[j] = tmp;
+            }
+            return lanes;
+        }
+    }
+
+    /**
+     * Shuffles the playable lanes with a fixed seed, so a shuffle can be replayed.
+     */
+    class Shuffle extends LaneRemap
+    {
+        private final long seed;
+
+        public Shuffle(long seed)
+        {
+            this.seed = seed;
+        }
+
+        @Override
+        protected String[] remap(String[] lanes)
+        {
+            Random random = new Random(seed);
+            for (int i = lanes.length - 1; i > 0; --i)
+            {
+                int j = random.nextInt(i + 1);
+                String tmp = lanes[i];
+                lanes[i] = lanes[j];
+                lanes[j] = tmp;
+            }
+            return lanes;
+        }
+    }
+
+    /**
+     * Thins the chart by dropping normal and hold notes that spawn less than a minimum number of frames
+     * from the previous kept normal or hold note of the same lane. Rows are seen in file order, which is
+     * not always frame order, so the gap is the distance either way: a note is not dropped for spawning
+     * before the row above it. Special and bomb notes are always kept.
+     */
+    class MinGap implements ChartTransform
+    {
+        private final int gap;
+        private final Map<String, Integer> lastFrame = new HashMap<>();
+
+        public MinGap(int gap)
+        {
+            this.gap = gap;
+        }
+
+        @Override
+        public boolean apply(Row row)
+        {
+            if (!row.isNote() || !(row.type.equals("Normal") || row.type.equals("Hold"))) return true;
+            Integer last = lastFrame.get(row.lane);
+            if (last != null && Math.abs(row.frame - last) < gap) return false;
+            lastFrame.put(row.lane, row.frame);
+            return true;
+        }
+    }
+}
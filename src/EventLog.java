@@ -0,0 +1,459 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * EventLog records gameplay events into a compact binary file.
+ * The game thread publishes fixed-size records into a preallocated single-producer ring buffer
+ * and a background writer drains it into batched NIO writes. Publishing never allocates, locks or
+ * blocks: when the ring is full the event is dropped and counted instead.
+ *
+ * File layout (little endian): a 16 byte header ({@code "SDEV"}, version, record size, ring capacity)
+ * followed by 16 byte records {@code int frame, short type, short lane, int a, int b}.
+ * The last record is an {@link #END} record whose {@code a} holds the number of dropped events.
+ *
+ * Logging is off unless enabled with {@code -Dshadowdance.eventlog} (see {@link #openDefault()}).
+ */
+public class EventLog
+{
+    /**
+     * Event types. The meaning of the {@code a} and {@code b} fields depends on the type.
+     * JUDGMENT: a = distance as float bits, b = score change after the multiplier.
+     * MESSAGE: a = message id (see {@link #messageId(String)}).
+     * LANE_CLEAR: lane = cleared lane.
+     * SPEED_CHANGE: a = new speed.
+     * DOUBLE_SCORE: a = new multiplier.
+     * ENEMY_SPAWN / ENEMY_KILL: a = X, b = Y of the enemy.
+     * GAME_STATE: a = ordinal of the new game state, b = level.
+     * END: a = number of dropped events.
+     * TIMING: lane = lane id in the low byte and note type in the high byte,
+     *         a = signed timing error in pixels as float bits (NaN for a miss), b = spawn frame of the note.
+     * CHART: the chart a level plays, published when it starts. The first record has lane = 0 and
+     *        a = length of the name; the following records, lane = 1, 2, ..., carry the name eight ASCII
+     *        characters at a time in a and b (see {@link #chart(int, String)}).
+     */
+    public final static short JUDGMENT = 1;
+    public final static short MESSAGE = 2;
+    public final static short LANE_CLEAR = 3;
+    public final static short SPEED_CHANGE = 4;
+    public final static short DOUBLE_SCORE = 5;
+    public final static short ENEMY_SPAWN = 6;
+    public final static short ENEMY_KILL = 7;
+    public final static short GAME_STATE = 8;
+    public final static short END = 9;
+    public final static short TIMING = 10;
+    public final static short CHART = 11;
+
+    private final static String[] TYPE_NAMES = {
+        "?", "JUDGMENT", "MESSAGE", "LANE_CLEAR", "SPEED_CHANGE", "DOUBLE_SCORE",
+        "ENEMY_SPAWN", "ENEMY_KILL", "GAME_STATE", "END", "TIMING", "CHART"
+    };
+    private final static String[] LANE_NAMES = { "-", "Left", "Right", "Up", "Down", "Special" };
+    private final static String[] MESSAGES = {
+        "", "PERFECT", "GOOD", "BAD", "MISS", "LANE CLEAR", "SPEED UP", "SLOW DOWN", "DOUBLE SCORE"
+    };
+
+    private final static int MAGIC = 0x56454453; // "SDEV"
+    private final static int VERSION = 1;
+    private final static int RECORD_BYTES = 16;
+    private final static int HEADER_BYTES = 16;
+    private final static int BATCH_RECORDS = 4096;
+    private final static int MAX_CHART_NAME = 256;
+
+    /**
+     * The number of session logs kept under {@code logs/}; older ones are deleted when a new session starts.
+     * The shortest and longest time the writer sleeps when the ring is empty; it backs off while idle.
+     */
+    private final static int KEPT_SESSIONS = 20;
+    private final static long MIN_IDLE_NANOS = 1_000_000L;
+    private final static long MAX_IDLE_NANOS = 100_000_000L;
+
+    /**
+     * The ring slots, four ints per record: frame, type and lane packed, a, b.
+     * The producer sequence (next slot to write) and consumer sequence (next slot to drain).
+     * The number of events dropped because the ring was full, written by the producer only.
+     */
+    private final int[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long cachedTail = 0;
+
+    private final FileChannel channel;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Opens a new event log file and starts its writer thread.
+     * @param path The file to write, replaced if it exists.
+     * @param capacity The number of records the ring holds, rounded up to a power of two.
+     * @throws IOException If the file cannot be created.
+     */
+    public EventLog(Path path, int capacity) throws IOException
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new int[size * 4];
+        mask = size - 1;
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).putInt(size).flip();
+        while (header.hasRemaining()) channel.write(header);
+
+        writer = new Thread(this::drainLoop, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Opens the event log configured by {@code -Dshadowdance.eventlog}: {@code on} writes a new session file
+     * under {@code logs/}, keeping the newest {@link #KEPT_SESSIONS}, and any other value names the file.
+     * Logging is off when the property is unset or {@code off}.
+     * @return The event log, or null if logging is disabled or the file cannot be opened.
+     */
+    public static EventLog openDefault()
+    {
+        String path = System.getProperty("shadowdance.eventlog", "off");
+        if (path.equals("off")) return null;
+        try {
+            if (path.equals("on"))
+            {
+                Path dir = Paths.get("logs");
+                pruneSessions(dir, KEPT_SESSIONS - 1);
+                return new EventLog(dir.resolve("session-" + System.currentTimeMillis() + ".sdlog"), 1 << 14);
+            }
+            return new EventLog(Paths.get(path), 1 << 14);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the oldest session logs in a directory.
+     * @param dir The directory.
+     * @param keep The number of session logs to keep.
+     * @throws IOException If the directory cannot be listed.
+     */
+    private static void pruneSessions(Path dir, int keep) throws IOException
+    {
+        if (!Files.isDirectory(dir)) return;
+        List<Path> sessions;
+        try (Stream<Path> list = Files.list(dir)) {
+            sessions = list.filter(f -> f.getFileName().toString().matches("session-\\d+\\.sdlog"))
+                           .sorted(Comparator.comparingLong(EventLog::sessionTime))
+                           .collect(Collectors.toList());
+        }
+        for (int i = 0; i < sessions.size() - keep; ++i)
+            Files.deleteIfExists(sessions.get(i));
+    }
+
+    /**
+     * @return The start time in the name of a session log.
+     */
+    private static long sessionTime(Path file)
+    {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring("session-".length(), name.length() - ".sdlog".length()));
+    }
+
+    /**
+     * Publishes an event. Must only be called from the game thread.
+     * @param frame The frame the event happened on.
+     * @param type The event type.
+     * @param lane The lane id (see {@link #laneId(String)}).
+     * @param a The first event field.
+     * @param b The second event field.
+     */
+    public void publish(int frame, short type, int lane, int a, int b)
+    {
+        long seq = head.get();
+        if (seq - cachedTail > mask)
+        {
+            cachedTail = tail.get();
+            if (seq - cachedTail > mask)
+            {
+                dropped.lazySet(dropped.get() + 1);
+                return;
+            }
+        }
+        int i = (int) (seq & mask) << 2;
+        ring[i] = frame;
+        ring[i + 1] = (type << 16) | (lane & 0xFFFF);
+        ring[i + 2] = a;
+        ring[i + 3] = b;
+        head.lazySet(seq + 1);
+    }
+
+    /**
+     * Publishes the chart a level plays, so that logs can be analysed per chart. Must only be called from the game thread.
+     * @param frame The frame the level starts at.
+     * @param name The chart, as its path and transform list; non-ASCII characters are written as {@code ?}
+     *             and names are cut at {@value #MAX_CHART_NAME} characters.
+     */
+    public void chart(int frame, String name)
+    {
+        int length = Math.min(name.length(), MAX_CHART_NAME);
+        publish(frame, CHART, 0, length, 0);
+        for (int at = 0, chunk = 1; at < length; at += 8, ++chunk)
+            publish(frame, CHART, chunk, pack(name, at, length), pack(name, at + 4, length));
+    }
+
+    /**
+     * @return Four characters of a name from a position as ASCII bytes, low byte first, padded with zeros.
+     */
+    private static int pack(String name, int from, int length)
+    {
+        int packed = 0;
+        for (int i = 0; i < 4 && from + i < length; ++i)
+        {
+            char c = name.charAt(from + i);
+            packed |= (c < 128 ? c : '?') << (8 * i);
+        }
+        return packed;
+    }
+
+    /**
+     * Reassembles chart names from the CHART records of a log, fed in file order.
+     */
+    public static class ChartName
+    {
+        private final StringBuilder name = new StringBuilder();
+        private int chunks = -1;
+
+        /**
+         * Adds a CHART record.
+         * @param lane The lane field of the record.
+         * @param a The first field of the record.
+         * @param b The second field of the record.
+         * @return The chart name once its last record has been added, otherwise null.
+         */
+        public String add(int lane, int a, int b)
+        {
+            if (lane == 0)
+            {
+                name.setLength(0);
+                chunks = (a + 7) / 8;
+            }
+            else if (lane <= chunks)
+            {
+                unpack(a);
+                unpack(b);
+            }
+            return lane == chunks ? name.toString() : null;
+        }
+
+        private void unpack(int packed)
+        {
+            for (int i = 0; i < 4; ++i)
+            {
+                int c = (packed >>> (8 * i)) & 0xFF;
+                if (c != 0) name.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Receives the records of an event log file.
+     */
+    public interface RecordVisitor
+    {
+        /**
+         * Called once for every record, in file order.
+         * @param frame The frame the event happened on.
+         * @param type The event type.
+         * @param lane The lane field.
+         * @param a The first event field.
+         * @param b The second event field.
+         */
+        void visit(int frame, int type, int lane, int a, int b);
+    }
+
+    /**
+     * Reads every record of an event log file.
+     * @param path The log file.
+     * @param visitor The visitor receiving the records.
+     * @return False if the file is not an event log.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean read(Path path, RecordVisitor visitor) throws IOException
+    {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC) return false;
+        in.position(HEADER_BYTES);
+        while (in.remaining() >= RECORD_BYTES)
+        {
+            visitor.visit(in.getInt(), in.getShort(), in.getShort() & 0xFFFF, in.getInt(), in.getInt());
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of events dropped so far because the ring was full.
+     */
+    public long droppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Maps a lane name to its id in the log. Does not allocate.
+     * @param laneName The lane name.
+     * @return The lane id, or 0 if the lane is unknown.
+     */
+    public static int laneId(String laneName)
+    {
+        for (int i = 1; i < LANE_NAMES.length; ++i)
+            if (LANE_NAMES[i].equals(laneName)) return i;
+        return 0;
+    }
+
+    /**
+     * Maps a score message to its id in the log. Does not allocate.
+     * @param msg The message.
+     * @return The message id, or -1 if the message is unknown.
+     */
+    public static int messageId(String msg)
+    {
+        for (int i = 0; i < MESSAGES.length; ++i)
+            if (MESSAGES[i].equals(msg)) return i;
+        return -1;
+    }
+
+    /**
+     * Stops the writer thread, drains the remaining events and closes the file.
+     */
+    public void close()
+    {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer loop: drains the ring in batches. While the ring stays empty it sleeps for twice as long
+     * each time, up to {@link #MAX_IDLE_NANOS}, which the ring outlasts at any gameplay event rate.
+     */
+    private void drainLoop()
+    {
+        try {
+            long idle = MIN_IDLE_NANOS;
+            while (running)
+            {
+                if (drain() > 0)
+                {
+                    idle = MIN_IDLE_NANOS;
+                    continue;
+                }
+                LockSupport.parkNanos(idle);
+                idle = Math.min(idle * 2, MAX_IDLE_NANOS);
+            }
+            drain();
+            batch.putInt(0).putInt(END).putInt((int) dropped.get()).putInt(0);
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies all published records into the batch buffer, writing it out whenever it fills.
+     * @return The number of records drained.
+     * @throws IOException If the write fails.
+     */
+    private int drain() throws IOException
+    {
+        long from = tail.get();
+        long to = head.get();
+        for (long seq = from; seq < to; ++seq)
+        {
+            int i = (int) (seq & mask) << 2;
+            batch.putInt(ring[i]).putShort((short) (ring[i + 1] >>> 16)).putShort((short) ring[i + 1])
+                 .putInt(ring[i + 2]).putInt(ring[i + 3]);
+            if (!batch.hasRemaining())
+            {
+                tail.lazySet(seq + 1);
+                flush();
+            }
+        }
+        tail.lazySet(to);
+        flush();
+        return (int) (to - from);
+    }
+
+    /**
+     * Writes the batch buffer to the file.
+     * @throws IOException If the write fails.
+     */
+    private void flush() throws IOException
+    {
+        batch.flip();
+        while (batch.hasRemaining()) channel.write(batch);
+        batch.clear();
+    }
+
+    /**
+     * Prints an event log file as text.
+     * @param args The log file to print.
+     * @throws IOException If the file cannot be read.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: EventLog <file.sdlog>");
+            return;
+        }
+        ChartName chart = new ChartName();
+        boolean ok = read(Paths.get(args[0]), (frame, type, lane, a, b) -> {
+            String name = type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "?";
+            String laneName = lane >= 0 && lane < LANE_NAMES.length ? LANE_NAMES[lane] : "?";
+            switch (type)
+            {
+            case JUDGMENT:
+                System.out.printf("%8d %-12s distance=%.1f score=%d%n", frame, name, Float.intBitsToFloat(a), b);
+                break;
+            case MESSAGE:
+                System.out.printf("%8d %-12s \"%s\"%n", frame, name, a >= 0 && a < MESSAGES.length ? MESSAGES[a] : "?");
+                break;
+            case LANE_CLEAR:
+                System.out.printf("%8d %-12s %s%n", frame, name, laneName);
+                break;
+            case CHART:
+                String chartName = chart.add(lane, a, b);
+                if (chartName != null) System.out.printf("%8d %-12s %s%n", frame, name, chartName);
+                break;
+            case TIMING:
+                System.out.printf("%8d %-12s %s type=%d error=%.1f spawn=%d%n", frame, name,
+                                  (lane & 0xFF) < LANE_NAMES.length ? LANE_NAMES[lane & 0xFF] : "?", lane >>> 8,
+                                  Float.intBitsToFloat(a), b);
+                break;
+            default:
+                System.out.printf("%8d %-12s %d %d%n", frame, name, a, b);
+                break;
+            }
+        });
+        if (!ok) System.err.println("not an event log: " + args[0]);
+    }
+}
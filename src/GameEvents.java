@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * GameEvents are the Java Flight Recorder events the simulation emits: the duration of every update and
+ * record phase, notes spawning and retiring, judgments with their distance, special-note effects, and
+ * enemies spawning and being killed.
+ *
+ * The events are disabled unless a recording enables them, normally with the bundled settings profile:
+ * {@code java -XX:StartFlightRecording=filename=session.jfr,settings=jfr/shadowdance.jfc ShadowDance}.
+ * While disabled, emitting one is a check of a flag and nothing is allocated or timed.
+ *
+ * {@code java GameEvents <recording.jfr>} summarizes a recording: the latency of every phase and the
+ * distribution of judgment distances.
+ */
+public class GameEvents
+{
+    /**
+     * The stages a frame phase belongs to: advancing the game logic, or recording a frame for the render thread.
+     */
+    public final static String UPDATE = "update";
+    public final static String RECORD = "record";
+
+    @Name("shadowdance.FramePhase")
+    @Label("Frame Phase")
+    @Category({ "Shadow Dance", "Frame" })
+    @Description("One phase of advancing or recording a frame")
+    @Enabled(false)
+    @StackTrace(false)
+    static class FramePhase extends Event
+    {
+        @Label("Frame")
+        int frame;
+        @Label("Stage")
+        String stage;
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("shadowdance.NoteSpawn")
+    @Label("Note Spawn")
+    @Category({ "Shadow Dance", "Notes" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class NoteSpawn extends Event
+    {
+        @Label("Frame")
+        int frame;
+        @Label("Note")
+        int note;
+        @Label("Lane")
+        String lane;
+        @Label("Type")
+        String type;
+    }
+
+    @Name("shadowdance.NoteRetire")
+    @Label("Note Retire")
+    @Category({ "Shadow Dance", "Notes" })
+    @Description("A note leaves the simulation, judged or cleared or off the screen")
+    @Enabled(false)
+    @StackTrace(false)
+    static class NoteRetire extends Event
+    {
+        @Label("Frame")
+        int frame;
+        @Label("Note")
+        int note;
+        @Label("Lane")
+        String lane;
+        @Label("Type")
+        String type;
+        @Label("Cleared")
+        boolean cleared;
+    }
+
+    @Name("shadowdance.Judgment")
+    @Label("Judgment")
+    @Category({ "Shadow Dance", "Score" })
+    @Enabled(false)
+    @StackTrace(false)
+    static class Judgment extends Event
+    {
+        @Label("Frame")
+        int frame;
+        @Label("Distance")
+        @Description("The distance from the hit line the note was scored with, in pixels")
+        float distance;
+        @Label("Score Change")
+        int scoreChange;
+    }
+
+    @Name("shadowdance.SpecialEffect")
+    @Label("Special Effect")
+    @Category({ "Shadow Dance", "Score" })
+    @Description("A speed change, double score or lane clear")
+    @Enabled(false)
+    @StackTrace(false)
+    static class SpecialEffect extends Event
+    {
+        @Label("Frame")
+        int frame;
+        @Label("Effect")
+        String effect;
+        @Label("Value")
+        @Description("The new speed or multiplier, or the cleared lane id")
+        int value;
+    }
+
+    @Name("shadowdance.Enemy")
+    @Label("Enemy")
+    @Category({ "Shadow Dance", "Enemies" })
+    @Description("An enemy spawning or being killed")
+    @Enabled(false)
+    @StackTrace(false)
+    static class Enemy extends Event
+    {
+        @Label("Frame")
+        int frame;
+        @Label("Killed")
+        boolean killed;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+    }
+
+    private final static EventType PHASES = EventType.getEventType(FramePhase.class);
+    private final static EventType SPAWNS = EventType.getEventType(NoteSpawn.class);
+    private final static EventType RETIRES = EventType.getEventType(NoteRetire.class);
+    private final static EventType JUDGMENTS = EventType.getEventType(Judgment.class);
+    private final static EventType EFFECTS = EventType.getEventType(SpecialEffect.class);
+    private final static EventType ENEMIES = EventType.getEventType(Enemy.class);
+
+    private GameEvents()
+    {
+    }
+
+    /**
+     * Starts timing the first phase of a frame.
+     * @return The phase event, or null if phase events are disabled.
+     */
+    public static FramePhase phase()
+    {
+        if (!PHASES.isEnabled()) return null;
+        FramePhase event = new FramePhase();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a phase and starts timing the next one.
+     * @param event The phase that ended, or null.
+     * @param stage {@link #UPDATE} or {@link #RECORD}.
+     * @param phase The name of the phase that ended.
+     * @param frame The frame.
+     * @return The next phase event, or null if phase events are disabled.
+     */
+    public static FramePhase phase(FramePhase event, String stage, String phase, int frame)
+    {
+        if (event == null) return null;
+        endPhase(event, stage, phase, frame);
+        return phase();
+    }
+
+    /**
+     * Ends the last phase of a frame.
+     * @param event The phase that ended, or null.
+     * @param stage {@link #UPDATE} or {@link #RECORD}.
+     * @param phase The name of the phase that ended.
+     * @param frame The frame.
+     */
+    public static void endPhase(FramePhase event, String stage, String phase, int frame)
+    {
+        if (event == null) return;
+        event.end();
+        event.frame = frame;
+        event.stage = stage;
+        event.phase = phase;
+        event.commit();
+    }
+
+    /**
+     * Emits a note spawning.
+     * @param frame The frame.
+     * @param note The index of the note in the chart.
+     * @param lane The lane name.
+     * @param type The note type.
+     */
+    public static void spawn(int frame, int note, String lane, Simulation.NoteType type)
+    {
+        if (!SPAWNS.isEnabled()) return;
+        NoteSpawn event = new NoteSpawn();
+        event.frame = frame;
+        event.note = note;
+        event.lane = lane;
+        event.type = type.name();
+        event.commit();
+    }
+
+    /**
+     * Emits a note leaving the simulation.
+     * @param frame The frame.
+     * @param note The index of the note in the chart.
+     * @param lane The lane name.
+     * @param type The note type.
+     * @param cleared True if the note was judged or cleared, false if it left the screen.
+     */
+    public static void retire(int frame, int note, String lane, Simulation.NoteType type, boolean cleared)
+    {
+        if (!RETIRES.isEnabled()) return;
+        NoteRetire event = new NoteRetire();
+        event.frame = frame;
+        event.note = note;
+        event.lane = lane;
+        event.type = type.name();
+        event.cleared = cleared;
+        event.commit();
+    }
+
+    /**
+     * Emits the flight recorder event for a gameplay event of the event log, if it has one:
+     * judgments, special effects and enemies.
+     * @param frame The frame.
+     * @param type The event type (see {@link EventLog}).
+     * @param lane The lane field.
+     * @param a The first event field.
+     * @param b The second event field.
+     */
+    public static void gameplay(int frame, short type, int lane, int a, int b)
+    {
+        switch (type)
+        {
+        case EventLog.JUDGMENT:
+            if (!JUDGMENTS.isEnabled()) return;
+            Judgment judgment = new Judgment();
+            judgment.frame = frame;
+            judgment.distance = Float.intBitsToFloat(a);
+            judgment.scoreChange = b;
+            judgment.commit();
+            return;
+        case EventLog.SPEED_CHANGE:
+        case EventLog.DOUBLE_SCORE:
+        case EventLog.LANE_CLEAR:
+            if (!EFFECTS.isEnabled()) return;
+            SpecialEffect effect = new SpecialEffect();
+            effect.frame = frame;
+            effect.effect = type == EventLog.SPEED_CHANGE ? "SpeedChange" : type == EventLog.DOUBLE_SCORE ? "DoubleScore" : "LaneClear";
+            effect.value = type == EventLog.LANE_CLEAR ? lane : a;
+            effect.commit();
+            return;
+        case EventLog.ENEMY_SPAWN:
+        case EventLog.ENEMY_KILL:
+            if (!ENEMIES.isEnabled()) return;
+            Enemy enemy = new Enemy();
+            enemy.frame = frame;
+            enemy.killed = type == EventLog.ENEMY_KILL;
+            enemy.x = a;
+            enemy.y = b;
+            enemy.commit();
+            return;
+        default:
+            return;
+        }
+    }
+
+    /**
+     * The upper bounds of the judgment distance bins, following the thresholds of the score.
+     */
+    private final static double[] DISTANCE_BINS = { 15, 50, 100, 200, Double.MAX_VALUE };
+    private final static String[] DISTANCE_NAMES = { "PERFECT <=15", "GOOD <=50", "BAD <=100", "MISS <=200", "MISS >200" };
+
+    /**
+     * Summarizes a recording: for every stage and phase the number of samples and the mean, median, 99th
+     * percentile and maximum duration; the judgments per distance bin; and the counts of the other events.
+     * @param recording The recording file.
+     * @return The summary.
+     * @throws IOException If the recording cannot be read.
+     */
+    public static String summarize(Path recording) throws IOException
+    {
+        Map<String, List<Long>> phases = new TreeMap<>();
+        Map<String, Integer> counts = new TreeMap<>();
+        int[] distances = new int[DISTANCE_BINS.length];
+        int judgments = 0;
+        double distanceSum = 0;
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents())
+            {
+                RecordedEvent event = file.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith("shadowdance.")) continue;
+                switch (name)
+                {
+                case "shadowdance.FramePhase":
+                    phases.computeIfAbsent(event.getString("stage") + " " + event.getString("phase"), k -> new ArrayList<>())
+                          .add(event.getDuration().toNanos());
+                    break;
+                case "shadowdance.Judgment":
+                    double distance = event.getFloat("distance");
+                    if (distance <= 0) break;
+                    int bin = 0;
+                    while (distance > DISTANCE_BINS[bin]) ++bin;
+                    ++distances[bin];
+                    ++judgments;
+                    distanceSum += distance;
+                    break;
+                case "shadowdance.SpecialEffect":
+                    counts.merge("effect " + event.getString("effect"), 1, Integer::sum);
+                    break;
+                case "shadowdance.Enemy":
+                    counts.merge(event.getBoolean("killed") ? "enemy killed" : "enemy spawned", 1, Integer::sum);
+                    break;
+                case "shadowdance.NoteRetire":
+                    counts.merge(event.getBoolean("cleared") ? "note retired, cleared" : "note retired, off screen", 1, Integer::sum);
+                    break;
+                default:
+                    counts.merge(name.substring("shadowdance.".length()), 1, Integer::sum);
+                    break;
+                }
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-18s %8s %9s %9s %9s %9s%n", "phase", "count", "mean us", "p50 us", "p99 us", "max us"));
+        for (Map.Entry<String, List<Long>> phase : phases.entrySet())
+        {
+            List<Long> samples = phase.getValue();
+            Collections.sort(samples);
+            long sum = 0;
+            for (long sample : samples) sum += sample;
+            out.append(String.format("%-18s %8d %9.1f %9.1f %9.1f %9.1f%n", phase.getKey(), samples.size(), sum / 1e3 / samples.size(),
+                                     samples.get(samples.size() / 2) / 1e3, samples.get((int) Math.min(samples.size() - 1, Math.ceil(samples.size() * 0.99) - 1)) / 1e3,
+                                     samples.get(samples.size() - 1) / 1e3));
+        }
+        out.append(String.format("%njudgments %d, mean distance %.1f px%n", judgments, judgments == 0 ? 0 : distanceSum / judgments));
+        for (int i = 0; i < distances.length; ++i)
+            out.append(String.format("  %-13s %6d %5.1f%%%n", DISTANCE_NAMES[i], distances[i], judgments == 0 ? 0 : 100.0 * distances[i] / judgments));
+        if (!counts.isEmpty()) out.append(String.format("%n"));
+        for (Map.Entry<String, Integer> count : counts.entrySet())
+            out.append(String.format("%-26s %6d%n", count.getKey(), count.getValue()));
+        return out.toString();
+    }
+
+    /**
+     * Prints the summary of a recording.
+     * @param args {@code <recording.jfr>}.
+     * @throws IOException If the recording cannot be read.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: GameEvents <recording.jfr>");
+            return;
+        }
+        System.out.print(summarize(Paths.get(args[0])));
+    }
+}
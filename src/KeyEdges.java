@@ -0,0 +1,188 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+import bagel.Input;
+import bagel.Keys;
+
+/**
+ * KeyEdges is a snapshot of the game keys pressed and released at one poll of the input,
+ * stamped with the time of the poll. It lets the game logic judge input away from bagel's
+ * {@link Input}, which is only valid on the render thread during {@code update}.
+ */
+public class KeyEdges
+{
+    /**
+     * The keys the game logic reacts to; a key's bit in the masks is its index here.
+     */
+    private final static Keys[] TRACKED = { Keys.LEFT, Keys.RIGHT, Keys.UP, Keys.DOWN, Keys.SPACE, Keys.LEFT_SHIFT };
+
+    private int pressed = 0;
+    private int released = 0;
+    private long nanos = 0;
+
+    /**
+     * Captures the tracked key edges from bagel's input.
+     * @param input The input of the current frame.
+     * @param nanos The time of the poll, from {@link System#nanoTime()}.
+     */
+    public void capture(Input input, long nanos)
+    {
+        capture(input, nanos, TRACKED);
+    }
+
+    /**
+     * Captures key edges from bagel's input with other keys bound to the game keys, such as one
+     * player's keys in a versus game.
+     * @param input The input of the current frame.
+     * @param nanos The time of the poll, from {@link System#nanoTime()}.
+     * @param binding The key bound to each game key, in the order of the arrow keys, space and left shift.
+     */
+    public void capture(Input input, long nanos, Keys[] binding)
+    {
+        pressed = 0;
+        released = 0;
+        for (int i = 0; i < binding.length; ++i)
+        {
+            if (input.wasPressed(binding[i])) pressed |= 1 << i;
+            if (input.wasReleased(binding[i])) released |= 1 << i;
+        }
+        this.nanos = nanos;
+    }
+
+    /**
+     * Sets the snapshot from recorded masks, as returned by {@link #pressedMask()} and {@link #releasedMask()}.
+     * @param pressed The keys pressed.
+     * @param released The keys released.
+     * @param nanos The time of the poll.
+     */
+    public void set(int pressed, int released, long nanos)
+    {
+        this.pressed = pressed;
+        this.released = released;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Empties the snapshot.
+     */
+    public void clear()
+    {
+        pressed = 0;
+        released = 0;
+    }
+
+    /**
+     * @return True if no tracked key changed.
+     */
+    public boolean isEmpty()
+    {
+        return (pressed | released) == 0;
+    }
+
+    public boolean wasPressed(Keys key)
+    {
+        return (pressed & bit(key)) != 0;
+    }
+
+    public boolean wasReleased(Keys key)
+    {
+        return (released & bit(key)) != 0;
+    }
+
+    /**
+     * @return The keys pressed, one bit per tracked key.
+     */
+    public int pressedMask()
+    {
+        return pressed;
+    }
+
+    /**
+     * @return The keys released, one bit per tracked key.
+     */
+    public int releasedMask()
+    {
+        return released;
+    }
+
+    /**
+     * @return The time of the poll, from {@link System#nanoTime()}.
+     */
+    public long nanos()
+    {
+        return nanos;
+    }
+
+    private static int bit(Keys key)
+    {
+        for (int i = 0; i < TRACKED.length; ++i)
+            if (TRACKED[i] == key) return 1 << i;
+        return 0;
+    }
+
+    /**
+     * A single-producer single-consumer ring of key edge snapshots, used to hand input from the
+     * render thread to the logic thread. Offering and polling never allocate or lock; when the ring
+     * is full the snapshot is dropped and counted.
+     */
+    public static class Queue
+    {
+        private final long[] ring;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private long dropped = 0;
+
+        /**
+         * @param capacity The number of snapshots the ring holds, rounded up to a power of two.
+         */
+        public Queue(int capacity)
+        {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            ring = new long[size * 2];
+            mask = size - 1;
+        }
+
+        /**
+         * Adds a snapshot. Only the producer may call this.
+         * @param edges The snapshot to copy into the ring.
+         */
+        public void offer(KeyEdges edges)
+        {
+            long seq = head.get();
+            if (seq - tail.get() > mask)
+            {
+                ++dropped;
+                return;
+            }
+            int i = (int) (seq & mask) << 1;
+            ring[i] = edges.nanos;
+            ring[i + 1] = ((long) edges.pressed << 32) | (edges.released & 0xFFFFFFFFL);
+            head.lazySet(seq + 1);
+        }
+
+        /**
+         * Takes the oldest snapshot. Only the consumer may call this.
+         * @param edges The snapshot to copy the oldest entry into.
+         * @return False if the ring was empty.
+         */
+        public boolean poll(KeyEdges edges)
+        {
+            long seq = tail.get();
+            if (seq == head.get()) return false;
+            int i = (int) (seq & mask) << 1;
+            edges.nanos = ring[i];
+            edges.pressed = (int) (ring[i + 1] >>> 32);
+            edges.released = (int) ring[i + 1];
+            tail.lazySet(seq + 1);
+            return true;
+        }
+
+        /**
+         * @return The number of snapshots dropped because the ring was full, as seen by the producer.
+         */
+        public long droppedCount()
+        {
+            return dropped;
+        }
+    }
+}
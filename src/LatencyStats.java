@@ -0,0 +1,77 @@
+/**
+ * LatencyStats accumulates durations into a fixed histogram of 50 microsecond bins up to 100 ms,
+ * so recording never allocates. Each instance must only be written by one thread.
+ */
+public class LatencyStats
+{
+    private final static long BIN_NANOS = 50_000L;
+    private final static int BINS = 2000;
+
+    private final String name;
+    private final int[] histogram = new int[BINS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * @param name The name shown in the summary.
+     */
+    public LatencyStats(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+        histogram[(int) Math.min(BINS - 1, nanos / BIN_NANOS)]++;
+        ++count;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * @return The number of durations recorded.
+     */
+    public long count()
+    {
+        return count;
+    }
+
+    /**
+     * @return The mean duration in milliseconds.
+     */
+    public double meanMillis()
+    {
+        return count == 0 ? 0 : sum / 1e6 / count;
+    }
+
+    /**
+     * @param p The percentile, between 0 and 1.
+     * @return The upper bound of the bin holding the percentile, in milliseconds.
+     */
+    public double percentileMillis(double p)
+    {
+        long target = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < BINS; ++i)
+        {
+            seen += histogram[i];
+            if (seen >= target && seen > 0) return (i + 1) * BIN_NANOS / 1e6;
+        }
+        return max / 1e6;
+    }
+
+    /**
+     * @return A one line summary.
+     */
+    public String summary()
+    {
+        return String.format("%s: n=%d mean=%.2f ms p50=%.2f ms p99=%.2f ms max=%.2f ms", name, count,
+                             meanMillis(), percentileMillis(0.5), percentileMillis(0.99), max / 1e6);
+    }
+}
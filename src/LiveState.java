@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * LiveState publishes the state of the game every frame into a small memory-mapped file, so local
+ * processes such as stream overlays can show the score, message, multiplier and speed without
+ * scraping the screen. Publishing writes into the mapping directly: no allocation, no lock, no system call.
+ *
+ * Readers get consistent snapshots through a sequence lock: the writer makes the sequence odd, writes
+ * the fields and makes it even again; a reader copies the fields between two reads of the sequence and
+ * retries if it changed or was odd. {@link Reader} does this, and {@code java LiveState <file>} prints
+ * the snapshots as they change.
+ *
+ * File layout (little endian, {@link #SIZE} bytes): {@code "SDLS"}, version, {@code long} sequence,
+ * game state ordinal, level, player count, then {@link #MAX_PLAYERS} slots of {@link #SLOT_BYTES} bytes at
+ * {@link #SLOTS}: frame, score, multiplier, speed, outcome ordinal, message length and
+ * {@link #MESSAGE_BYTES} bytes of ASCII message.
+ *
+ * Enabled with {@code -Dshadowdance.live=<file>}.
+ */
+public class LiveState
+{
+    private final static int MAGIC = 0x534c4453; // "SDLS"
+    private final static int VERSION = 1;
+
+    /**
+     * The offsets of the header fields and the slots, the size of a slot and its message, and of the file.
+     */
+    public final static int SEQUENCE = 8;
+    public final static int GAME_STATE = 16;
+    public final static int LEVEL = 20;
+    public final static int PLAYERS = 24;
+    public final static int SLOTS = 32;
+    public final static int MAX_PLAYERS = 4;
+    public final static int SLOT_BYTES = 96;
+    public final static int MESSAGE_BYTES = 64;
+    public final static int SIZE = SLOTS + MAX_PLAYERS * SLOT_BYTES;
+
+    private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private long sequence = 0;
+
+    /**
+     * Creates the file, or takes over an existing one, and maps it.
+     * @param path The file.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    public LiveState(Path path) throws IOException
+    {
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        sequence = (long) LONGS.getVolatile(buffer, SEQUENCE) + 1 & ~1L;
+        begin();
+        buffer.putInt(0, MAGIC).putInt(4, VERSION);
+        for (int i = GAME_STATE; i < SIZE; ++i) buffer.put(i, (byte) 0);
+        end();
+    }
+
+    /**
+     * Opens the live state file configured by {@code -Dshadowdance.live}.
+     * @return The live state, or null if it is not configured or the file cannot be mapped.
+     */
+    public static LiveState openDefault()
+    {
+        String path = System.getProperty("shadowdance.live");
+        if (path == null || path.equals("off")) return null;
+        try {
+            return new LiveState(Paths.get(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Starts an update; readers retry until {@link #end()}. Must only be called from one thread.
+     */
+    public void begin()
+    {
+        LONGS.setOpaque(buffer, SEQUENCE, ++sequence);
+        VarHandle.storeStoreFence();
+    }
+
+    /**
+     * Writes the header fields.
+     * @param gameState The ordinal of the game state.
+     * @param level The level being played.
+     * @param players The number of players.
+     */
+    public void game(int gameState, int level, int players)
+    {
+        buffer.putInt(GAME_STATE, gameState).putInt(LEVEL, level).putInt(PLAYERS, players);
+    }
+
+    /**
+     * Writes the slot of a player.
+     * @param player The player, from 0.
+     * @param frame The RenderBuffer the player is shown.
+     * @param outcome The ordinal of the player's outcome.
+     */
+    public void player(int player, RenderBuffer frame, int outcome)
+    {
+        int at = SLOTS + player * SLOT_BYTES;
+        buffer.putInt(at, frame.frame).putInt(at + 4, frame.score).putInt(at + 8, frame.multiplier)
+              .putInt(at + 12, frame.speed).putInt(at + 16, outcome);
+        String msg = frame.msg;
+        int length = Math.min(msg.length(), MESSAGE_BYTES);
+        for (int i = 0; i < length; ++i)
+        {
+            char c = msg.charAt(i);
+            buffer.put(at + 24 + i, (byte) (c < 128 ? c : '?'));
+        }
+        buffer.putInt(at + 20, length);
+    }
+
+    /**
+     * Finishes an update.
+     */
+    public void end()
+    {
+        LONGS.setRelease(buffer, SEQUENCE, ++sequence);
+    }
+
+    /**
+     * A copy of the live state.
+     */
+    public static class Snapshot
+    {
+        public long sequence;
+        public int gameState;
+        public int level;
+        public int players;
+        public final int[] frame = new int[MAX_PLAYERS];
+        public final int[] score = new int[MAX_PLAYERS];
+        public final int[] multiplier = new int[MAX_PLAYERS];
+        public final int[] speed = new int[MAX_PLAYERS];
+        public final int[] outcome = new int[MAX_PLAYERS];
+        private final int[] messageLength = new int[MAX_PLAYERS];
+        private final byte[][] message = new byte[MAX_PLAYERS][MESSAGE_BYTES];
+
+        /**
+         * @param player The player, from 0.
+         * @return The player's current message.
+         */
+        public String message(int player)
+        {
+            return new String(message[player], 0, messageLength[player], StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Reads the live state another process publishes.
+     */
+    public static class Reader
+    {
+        private final MappedByteBuffer buffer;
+        private final int[] slot = new int[MAX_PLAYERS * 6];
+        private final byte[][] message = new byte[MAX_PLAYERS][MESSAGE_BYTES];
+
+        /**
+         * Maps a live state file.
+         * @param path The file.
+         * @throws IOException If the file cannot be mapped or is not a live state file.
+         */
+        public Reader(Path path) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() < SIZE) throw new IOException(path + " is not a live state file");
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) throw new IOException(path + " is not a live state file");
+        }
+
+        /**
+         * @return The current sequence; it changes whenever the state is updated.
+         */
+        public long sequence()
+        {
+            return (long) LONGS.getAcquire(buffer, SEQUENCE);
+        }
+
+        /**
+         * Copies a consistent snapshot.
+         * @param into The snapshot to copy into.
+         * @return False if the writer kept updating while copying, leaving the snapshot unchanged.
+         */
+        public boolean read(Snapshot into)
+        {
+            for (int attempt = 0; attempt < 1000; ++attempt)
+            {
+                long before = (long) LONGS.getAcquire(buffer, SEQUENCE);
+                if ((before & 1) != 0)
+                {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int gameState = buffer.getInt(GAME_STATE), level = buffer.getInt(LEVEL);
+                int players = Math.min(MAX_PLAYERS, Math.max(0, buffer.getInt(PLAYERS)));
+                for (int p = 0; p < MAX_PLAYERS; ++p)
+                {
+                    int at = SLOTS + p * SLOT_BYTES;
+                    for (int f = 0; f < 6; ++f) slot[p * 6 + f] = buffer.getInt(at + f * 4);
+                    for (int i = 0; i < MESSAGE_BYTES; ++i) message[p][i] = buffer.get(at + 24 + i);
+                }
+                VarHandle.loadLoadFence();
+                if ((long) LONGS.getOpaque(buffer, SEQUENCE) != before) continue;
+                into.sequence = before;
+                into.gameState = gameState;
+                into.level = level;
+                into.players = players;
+                for (int p = 0; p < MAX_PLAYERS; ++p)
+                {
+                    into.frame[p] = slot[p * 6];
+                    into.score[p] = slot[p * 6 + 1];
+                    into.multiplier[p] = slot[p * 6 + 2];
+                    into.speed[p] = slot[p * 6 + 3];
+                    into.outcome[p] = slot[p * 6 + 4];
+                    into.messageLength[p] = Math.min(MESSAGE_BYTES, Math.max(0, slot[p * 6 + 5]));
+                    System.arraycopy(message[p], 0, into.message[p], 0, MESSAGE_BYTES);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Prints the live state of a running game whenever it changes, as an overlay would read it.
+     * @param args {@code <live state file>}.
+     * @throws Exception If the file cannot be mapped.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: LiveState <live state file>");
+            return;
+        }
+        Reader reader = new Reader(Paths.get(args[0]));
+        Snapshot snapshot = new Snapshot();
+        String last = "";
+        while (true)
+        {
+            if (reader.read(snapshot))
+            {
+                StringBuilder line = new StringBuilder(String.format("state %d level %d", snapshot.gameState, snapshot.level));
+                for (int p = 0; p < snapshot.players; ++p)
+                    line.append(String.format(" | P%d frame %d score %d x%d speed %d %s", p + 1, snapshot.frame[p],
+                                              snapshot.score[p], snapshot.multiplier[p], snapshot.speed[p], snapshot.message(p)));
+                if (!line.toString().equals(last)) System.out.println(line);
+                last = line.toString();
+            }
+            Thread.sleep(16);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+import bagel.DrawOptions;
+import bagel.Image;
+
+/**
+ * RenderBuffer is a recorded frame: the sprites to draw and the score text to show.
+ * The game logic records into a buffer without touching the window, and the render thread
+ * replays it with bagel.
+ */
+public class RenderBuffer
+{
+    /**
+     * The asset id, position and rotation of every sprite, in drawing order.
+     */
+    private int[] images = new int[64];
+    private double[] x = new double[64];
+    private double[] y = new double[64];
+    private double[] rotation = new double[64];
+    private int count = 0;
+
+    /**
+     * The score and score message to show.
+     * The chart frame, score multiplier and scroll speed the frame was recorded at.
+     */
+    public int score = 0;
+    public String msg = "";
+    public int frame = 0;
+    public int multiplier = 1;
+    public int speed = 0;
+
+    /**
+     * Empties the buffer before recording a new frame.
+     */
+    public void clear()
+    {
+        count = 0;
+    }
+
+    /**
+     * @return The number of recorded sprites.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @param i The index of a recorded sprite, in drawing order.
+     * @return The asset id of its image.
+     */
+    public int image(int i)
+    {
+        return images[i];
+    }
+
+    /**
+     * Records a sprite.
+     * @param image The asset id of the image (see {@link AssetManifest}).
+     * @param x The X-coordinate of the centre of the sprite.
+     * @param y The Y-coordinate of the centre of the sprite.
+     */
+    public void sprite(int image, double x, double y)
+    {
+        sprite(image, x, y, 0);
+    }
+
+    /**
+     * Records a rotated sprite.
+     * @param image The asset id of the image (see {@link AssetManifest}).
+     * @param x The X-coordinate of the centre of the sprite.
+     * @param y The Y-coordinate of the centre of the sprite.
+     * @param rotation The rotation in radians.
+     */
+    public void sprite(int image, double x, double y, double rotation)
+    {
+        if (count == images.length)
+        {
+            images = Arrays.copyOf(images, count * 2);
+            this.x = Arrays.copyOf(this.x, count * 2);
+            this.y = Arrays.copyOf(this.y, count * 2);
+            this.rotation = Arrays.copyOf(this.rotation, count * 2);
+        }
+        images[count] = image;
+        this.x[count] = x;
+        this.y[count] = y;
+        this.rotation[count] = rotation;
+        ++count;
+    }
+
+    /**
+     * The draw options reused for rotated and scaled sprites.
+     */
+    private final DrawOptions options = new DrawOptions();
+
+    /**
+     * Draws the recorded sprites. Must be called on the render thread.
+     */
+    public void replay()
+    {
+        replay(0, 1);
+    }
+
+    /**
+     * Draws the recorded sprites into a horizontal slice of the window, used when several players share it.
+     * Must be called on the render thread.
+     * @param offsetX The X-coordinate of the left edge of the slice.
+     * @param scaleX The width of the slice relative to the window; sprites are narrowed by the same factor.
+     */
+    public void replay(double offsetX, double scaleX)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            Image image = ResourceTracker.image(images[i]);
+            double drawX = offsetX + x[i] * scaleX;
+            if (rotation[i] == 0 && scaleX == 1) image.draw(drawX, y[i]);
+            else image.draw(drawX, y[i], options.setRotation(rotation[i]).setScale(scaleX, 1));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Replay is the recorded input of one played level, together with everything needed to simulate it
+ * again: the chart and its transforms, the level rules, the initial speed, the enemy seed, the
+ * practice start frame and the input offset of the machine. It also holds the score and outcome the game reported, so a replay can be
+ * checked by {@link ReplayVerifier}.
+ *
+ * Only the frames with key edges are recorded. A {@link #STEP} entry holds the keys of a whole frame;
+ * a {@link #JUDGE} entry holds keys the logic thread judged after stepping to its frame, before the next.
+ *
+ * File layout (big endian): {@code "SDRP"}, version, chart path, transform list, level, speed, seed,
+ * start frame, input offset, end frame, score, outcome, entry count, then {@code int frame, byte kind,
+ * byte pressed, byte released} per entry. Version 1 files have no input offset and are read with none.
+ */
+public class Replay
+{
+    private final static int MAGIC = 0x53445250; // "SDRP"
+    private final static int VERSION = 2;
+
+    /**
+     * The kinds of input entries.
+     */
+    public final static byte STEP = 0;
+    public final static byte JUDGE = 1;
+
+    /**
+     * The chart file and the transform list it was played with ("" for none).
+     * The level whose rules applied and the initial scroll speed.
+     * The seed placing the enemies.
+     * The frame the song was started at, 0 from the beginning.
+     * The input offset judgment applied, in microseconds (see {@link Simulation#setInputOffset(int)}).
+     */
+    public final String chart;
+    public final String transform;
+    public final int level;
+    public final int speed;
+    public final long seed;
+    public final int startFrame;
+    public final int inputOffset;
+
+    /**
+     * The last frame simulated, the score reached and the outcome, as reported by the game.
+     */
+    public int endFrame = 0;
+    public int score = 0;
+    public Simulation.State outcome = Simulation.State.PLAY;
+
+    private int[] frames = new int[256];
+    private byte[] kinds = new byte[256];
+    private short[] keys = new short[256];
+    private int count = 0;
+
+    public Replay(String chart, String transform, int level, int speed, long seed, int startFrame, int inputOffset)
+    {
+        this.chart = chart;
+        this.transform = transform == null ? "" : transform;
+        this.level = level;
+        this.speed = speed;
+        this.seed = seed;
+        this.startFrame = startFrame;
+        this.inputOffset = inputOffset;
+    }
+
+    /**
+     * Records key edges. Must only be called from the thread running the simulation.
+     * @param frame The frame of the simulation.
+     * @param kind {@link #STEP} or {@link #JUDGE}.
+     * @param edges The key edges.
+     */
+    public void input(int frame, byte kind, KeyEdges edges)
+    {
+        add(frame, kind, edges.pressedMask(), edges.releasedMask());
+    }
+
+    private void add(int frame, byte kind, int pressed, int released)
+    {
+        if (count == frames.length)
+        {
+            frames = Arrays.copyOf(frames, count * 2);
+            kinds = Arrays.copyOf(kinds, count * 2);
+            keys = Arrays.copyOf(keys, count * 2);
+        }
+        frames[count] = frame;
+        kinds[count] = kind;
+        keys[count] = (short) ((pressed & 0xFF) | (released & 0xFF) << 8);
+        ++count;
+    }
+
+    /**
+     * Stores the result the game reached.
+     * @param simulation The finished simulation.
+     */
+    public void finish(Simulation simulation)
+    {
+        endFrame = simulation.frame();
+        score = simulation.currentScore();
+        outcome = simulation.state();
+    }
+
+    /**
+     * @return The number of input entries.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    public int frame(int entry)
+    {
+        return frames[entry];
+    }
+
+    public byte kind(int entry)
+    {
+        return kinds[entry];
+    }
+
+    public int pressed(int entry)
+    {
+        return keys[entry] & 0xFF;
+    }
+
+    public int released(int entry)
+    {
+        return keys[entry] >>> 8 & 0xFF;
+    }
+
+    /**
+     * Writes the replay to a file, creating its directory if needed.
+     * @param path The file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(Path path) throws IOException
+    {
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(chart);
+            out.writeUTF(transform);
+            out.writeByte(level);
+            out.writeInt(speed);
+            out.writeLong(seed);
+            out.writeInt(startFrame);
+            out.writeInt(inputOffset);
+            out.writeInt(endFrame);
+            out.writeInt(score);
+            out.writeByte(outcome.ordinal());
+            out.writeInt(count);
+            for (int i = 0; i < count; ++i)
+            {
+                out.writeInt(frames[i]);
+                out.writeByte(kinds[i]);
+                out.writeByte(pressed(i));
+                out.writeByte(released(i));
+            }
+        }
+    }
+
+    /**
+     * Reads a replay file.
+     * @param path The file.
+     * @return The replay.
+     * @throws IOException If the file cannot be read or is not a replay.
+     */
+    public static Replay read(Path path) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IOException(path + " is not a replay");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) throw new IOException(path + " has unknown version " + version);
+            Replay replay = new Replay(in.readUTF(), in.readUTF(), in.readByte(), in.readInt(), in.readLong(), in.readInt(),
+                                       version >= 2 ? in.readInt() : 0);
+            replay.endFrame = in.readInt();
+            replay.score = in.readInt();
+            int outcome = in.readByte();
+            if (outcome < 0 || outcome >= Simulation.State.values().length) throw new IOException(path + " has a bad outcome");
+            replay.outcome = Simulation.State.values()[outcome];
+            int count = in.readInt();
+            if (count < 0) throw new IOException(path + " has a bad entry count");
+            for (int i = 0; i < count; ++i)
+                replay.add(in.readInt(), in.readByte(), in.readUnsignedByte(), in.readUnsignedByte());
+            return replay;
+        }
+    }
+
+    /**
+     * Returns where the game saves the replay of a chart: a new file in the directory configured by
+     * {@code -Dshadowdance.replays} (default {@code replays}). Saving is disabled with {@code -Dshadowdance.replays=off}.
+     * @param chartName The chart name.
+     * @return The file, or null if saving is disabled.
+     */
+    public static Path defaultPath(String chartName)
+    {
+        String dir = System.getProperty("shadowdance.replays", "replays");
+        if (dir.equals("off")) return null;
+        return Paths.get(dir, chartName + "-" + System.currentTimeMillis() + ".sdreplay");
+    }
+}
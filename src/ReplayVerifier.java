@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ReplayVerifier checks submitted scores by simulating their replays again, headlessly, and comparing
+ * the score and outcome the simulation reaches with the ones the game reported.
+ *
+ * Replays are untrusted input. The chart is looked up by its id (the chart's name, see
+ * {@link ChartLibrary.ChartInfo#name()}) in the verifier's own chart library, never read from the path the
+ * replay names, and the replay must be a plain run from the start: no chart transform, start frame 0, the
+ * chart's level, a speed the game plays at and an input offset within {@link #MAX_INPUT_OFFSET}.
+ * The simulation runs until it reaches an outcome, or gives up a minute after the chart's last note, so
+ * a replay cannot make the verifier simulate longer than its chart.
+ *
+ * Each replay is simulated on its own task; the library's charts are parsed once when the verifier is
+ * created and shared read-only between the tasks. On a runtime with virtual threads every replay gets one,
+ * otherwise the replays run on a pool with one thread per core.
+ */
+public class ReplayVerifier
+{
+    /**
+     * The result of verifying one replay.
+     */
+    public static class Result
+    {
+        /**
+         * The replay file, the score and outcome the simulation reached, and whether they match the reported ones.
+         * The error that kept the replay from being simulated, or null.
+         */
+        public final String file;
+        public final int score;
+        public final Simulation.State outcome;
+        public final boolean valid;
+        public final String error;
+
+        private Result(String file, int score, Simulation.State outcome, boolean valid, String error)
+        {
+            this.file = file;
+            this.score = score;
+            this.outcome = outcome;
+            this.valid = valid;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The scroll speeds the game plays at (see {@code ShadowDance.Screen}).
+     * The largest input offset, in microseconds either way, a replay may have been played with.
+     * The frames simulated after a chart's last note before a replay that has not reached an outcome is rejected.
+     */
+    public final static int[] SPEEDS = { 2, 4 };
+    public final static int MAX_INPUT_OFFSET = Calibration.MAX_OFFSET_MICROS;
+    public final static int MAX_TAIL_FRAMES = 60 * 60;
+
+    /**
+     * The library's charts and their metadata by chart id, parsed once and never added to.
+     */
+    private final Map<String, Chart> charts = new HashMap<>();
+    private final Map<String, ChartLibrary.ChartInfo> infos = new HashMap<>();
+
+    /**
+     * Creates a verifier for the charts of a library, parsing every chart.
+     * @param library The charts replays may be played on.
+     * @throws IOException If a chart cannot be read.
+     */
+    public ReplayVerifier(List<ChartLibrary.ChartInfo> library) throws IOException
+    {
+        for (ChartLibrary.ChartInfo info : library)
+        {
+            charts.put(info.name(), Chart.read(info.path, ""));
+            infos.put(info.name(), info);
+        }
+    }
+
+    /**
+     * Simulates a replay against its chart: frames are stepped, with the recorded keys of each frame, until
+     * the simulation reaches an outcome, and the recorded mid-frame keys are judged after stepping to their frame.
+     * @param replay The replay.
+     * @param chart The chart the replay was played on.
+     * @param maxFrame The frame to give up at if the simulation has not reached an outcome.
+     * @return The simulation, finished unless it reached the frame limit.
+     */
+    public static Simulation simulate(Replay replay, Chart chart, int maxFrame)
+    {
+        Simulation simulation = new Simulation(chart, replay.level, replay.speed, replay.seed, Simulation.NONE, false);
+        simulation.setInputOffset(replay.inputOffset);
+        simulation.seek(replay.startFrame);
+        KeyEdges keys = new KeyEdges();
+        int entry = 0;
+        while (true)
+        {
+            while (entry < replay.size() && replay.kind(entry) == Replay.JUDGE && replay.frame(entry) <= simulation.frame())
+            {
+                keys.set(replay.pressed(entry), replay.released(entry), 0);
+                simulation.judge(keys);
+                ++entry;
+            }
+            if (simulation.state() != Simulation.State.PLAY || simulation.frame() >= maxFrame) break;
+            if (entry < replay.size() && replay.kind(entry) == Replay.STEP && replay.frame(entry) == simulation.frame() + 1)
+            {
+                keys.set(replay.pressed(entry), replay.released(entry), 0);
+                ++entry;
+            }
+            else keys.clear();
+            simulation.step(keys);
+        }
+        return simulation;
+    }
+
+    /**
+     * Verifies a replay file.
+     * @param file The replay file.
+     * @return The result; never throws.
+     */
+    public Result verify(Path file)
+    {
+        try {
+            Replay replay = Replay.read(file);
+            String id = ChartLibrary.name(replay.chart);
+            Chart chart = charts.get(id);
+            if (chart == null) throw new IllegalArgumentException("unknown chart " + id);
+            ChartLibrary.ChartInfo info = infos.get(id);
+            if (!replay.transform.isEmpty()) throw new IllegalArgumentException("chart transform " + replay.transform);
+            if (replay.startFrame != 0) throw new IllegalArgumentException("start frame " + replay.startFrame);
+            if (replay.level != info.level) throw new IllegalArgumentException("level " + replay.level + " for a level " + info.level + " chart");
+            if (Arrays.stream(SPEEDS).noneMatch(speed -> speed == replay.speed)) throw new IllegalArgumentException("speed " + replay.speed);
+            if (Math.abs(replay.inputOffset) > MAX_INPUT_OFFSET) throw new IllegalArgumentException("input offset " + replay.inputOffset + " us");
+            if (replay.outcome == Simulation.State.PLAY) throw new IllegalArgumentException("unfinished replay");
+            Simulation simulation = simulate(replay, chart, info.length + MAX_TAIL_FRAMES);
+            if (simulation.state() == Simulation.State.PLAY)
+                throw new IllegalArgumentException("no outcome by frame " + simulation.frame());
+            boolean valid = simulation.currentScore() == replay.score && simulation.state() == replay.outcome
+                            && simulation.frame() == replay.endFrame;
+            return new Result(file.toString(), simulation.currentScore(), simulation.state(), valid, null);
+        } catch (IOException | RuntimeException e) {
+            return new Result(file.toString(), 0, Simulation.State.PLAY, false, e.toString());
+        }
+    }
+
+    /**
+     * Creates the executor running the replays: one virtual thread per replay when the runtime has them,
+     * otherwise a pool with one thread per core.
+     * @return The executor.
+     */
+    private static ExecutorService newExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Collects the replay files under the given files and directories.
+     * @param args The files and directories.
+     * @return The replay files.
+     * @throws IOException If a directory cannot be walked.
+     */
+    private static List<Path> collect(List<String> args) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        for (String arg : args)
+        {
+            Path path = Paths.get(arg);
+            if (!Files.isDirectory(path))
+            {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(path)) {
+                files.addAll(walk.filter(f -> f.toString().endsWith(".sdreplay")).sorted().collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Verifies every replay under the given files and directories and prints the ones that do not match,
+     * followed by the totals and the throughput.
+     * @param args {@code [--repeat <n>] <replay files or directories>}; with {@code --repeat} every replay
+     *             is verified n times, to measure throughput.
+     * @throws Exception If a directory cannot be walked or verification is interrupted.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int repeat = 1;
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("--repeat") && i + 1 < args.length) repeat = Integer.parseInt(args[++i]);
+            else inputs.add(args[i]);
+        }
+        if (inputs.isEmpty())
+        {
+            System.err.println("usage: ReplayVerifier [--repeat <n>] <replay files or directories>; charts from -Dshadowdance.charts");
+            return;
+        }
+        List<Path> files = collect(inputs);
+        ReplayVerifier verifier = new ReplayVerifier(ChartLibrary.scanDefault());
+        List<Future<Result>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        ExecutorService executor = newExecutor();
+        try {
+            for (int r = 0; r < repeat; ++r)
+                for (Path file : files)
+                    results.add(executor.submit(() -> verifier.verify(file)));
+            int valid = 0, invalid = 0, failed = 0;
+            for (int i = 0; i < results.size(); ++i)
+            {
+                Result result = results.get(i).get();
+                if (result.valid) ++valid;
+                else if (result.error != null) ++failed;
+                else ++invalid;
+                if (i >= files.size() || result.valid) continue;
+                if (result.error != null) System.out.printf("FAILED   %s: %s%n", result.file, result.error);
+                else System.out.printf("MISMATCH %s: simulated %d %s%n", result.file, result.score, result.outcome);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int cores = Runtime.getRuntime().availableProcessors();
+            double rate = results.size() / seconds;
+            System.out.printf("%d replays: %d valid, %d mismatched, %d failed%n", results.size(), valid, invalid, failed);
+            System.out.printf("%.2f s, %.0f replays/s, %.0f replays/s/core on %d cores%n", seconds, rate, rate / cores, cores);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
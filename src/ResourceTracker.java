@@ -0,0 +1,173 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import bagel.Font;
+import bagel.Image;
+
+/**
+ * ResourceTracker is the single place bagel images and fonts are created, so every native texture and
+ * font can be counted by asset path. Resources are cached by default, so an asset is created once no
+ * matter how often it is drawn or how often the game restarts. With {@code -Dshadowdance.resourceCache=false}
+ * every request creates a new resource again, which shows how fast the uncached game grows.
+ *
+ * Counts are kept at the native calls themselves: a resource is live from the {@code new Image} or
+ * {@code new Font} that created it until it is disposed. Bagel has no call that frees a texture or a font
+ * (dropping the wrapper leaves it allocated until the window closes), so nothing is ever disposed and the
+ * live count of an asset is the number of times it was created.
+ *
+ * A level takes a {@link #snapshot()} when it starts and compares against it when it ends, and so does a retry;
+ * the report only prints. {@code ResourceTrackerTest} plays levels and retries headlessly and fails on any growth.
+ */
+public class ResourceTracker
+{
+    private final static boolean CACHE = !"false".equals(System.getProperty("shadowdance.resourceCache"));
+
+    /**
+     * The number of native resources created for each asset key.
+     */
+    private final static Map<String, AtomicInteger> created = new ConcurrentHashMap<>();
+    private final static Map<String, Object> cache = new ConcurrentHashMap<>();
+    /**
+     * The cached images by asset id; only touched on the render thread.
+     */
+    private static Object[] assets = new Object[0];
+
+    /**
+     * The native calls creating images and fonts. Tests that run without a window replace them with
+     * calls creating stand-ins, so everything but the native allocation is exercised.
+     */
+    static Function<String, Object> newImage = Image::new;
+    static BiFunction<String, Integer, Object> newFont = Font::new;
+
+    private ResourceTracker()
+    {
+    }
+
+    /**
+     * Returns the image for an asset path. Must be called on the render thread.
+     * @param path The image path.
+     * @return The image.
+     */
+    public static Image image(String path)
+    {
+        return (Image) imageResource(path);
+    }
+
+    private static Object imageResource(String path)
+    {
+        if (CACHE) return cache.computeIfAbsent(path, key -> create(key, () -> newImage.apply(key)));
+        return create(path, () -> newImage.apply(path));
+    }
+
+    /**
+     * Returns the image for an asset id (see {@link AssetManifest}). Must be called on the render thread.
+     * Once an image is cached, this is an array lookup.
+     * @param id The asset id.
+     * @return The image.
+     */
+    public static Image image(int id)
+    {
+        return (Image) asset(id);
+    }
+
+    /**
+     * Returns the image for an asset id without requiring it to be a bagel image, for tests.
+     * @param id The asset id.
+     * @return The image or its stand-in.
+     */
+    static Object asset(int id)
+    {
+        Object image = id < assets.length ? assets[id] : null;
+        return image != null ? image : loadAsset(id);
+    }
+
+    private static Object loadAsset(int id)
+    {
+        AssetManifest manifest = AssetManifest.get();
+        if (assets.length < manifest.size()) assets = Arrays.copyOf(assets, manifest.size());
+        Object image = imageResource(manifest.file(id));
+        if (CACHE) assets[id] = image;
+        return image;
+    }
+
+    /**
+     * Returns the font for an asset path and size. Must be called on the render thread.
+     * @param path The font path.
+     * @param size The font size.
+     * @return The font.
+     */
+    public static Font font(String path, int size)
+    {
+        return (Font) fontResource(path, size);
+    }
+
+    /**
+     * Returns the font for an asset path and size without requiring it to be a bagel font, for tests.
+     * @param path The font path.
+     * @param size The font size.
+     * @return The font or its stand-in.
+     */
+    static Object fontResource(String path, int size)
+    {
+        String key = path + "@" + size;
+        if (CACHE) return cache.computeIfAbsent(key, k -> create(k, () -> newFont.apply(path, size)));
+        return create(key, () -> newFont.apply(path, size));
+    }
+
+    /**
+     * Makes a native call creating a resource and counts it as live; counted only once the call succeeds.
+     */
+    private static Object create(String key, Supplier<Object> call)
+    {
+        Object resource = call.get();
+        created.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        return resource;
+    }
+
+    /**
+     * @return The number of live resources for each asset key.
+     */
+    public static Map<String, Integer> snapshot()
+    {
+        Map<String, Integer> live = new TreeMap<>();
+        created.forEach((key, count) -> live.put(key, count.get()));
+        return live;
+    }
+
+    /**
+     * @return The total number of live resources.
+     */
+    public static int liveCount()
+    {
+        int total = 0;
+        for (AtomicInteger count : created.values()) total += count.get();
+        return total;
+    }
+
+    /**
+     * Compares the live resources against an earlier snapshot and prints the assets that grew.
+     * @param before The earlier snapshot.
+     * @param label What the comparison covers, e.g. "level 3" or "retry".
+     * @return The total growth in live resources.
+     */
+    public static int report(Map<String, Integer> before, String label)
+    {
+        int growth = 0;
+        StringBuilder details = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : snapshot().entrySet())
+        {
+            int change = entry.getValue() - before.getOrDefault(entry.getKey(), 0);
+            if (change <= 0) continue;
+            growth += change;
+            details.append(String.format("%n  %+d %s", change, entry.getKey()));
+        }
+        System.out.printf("resources after %s: %d live, %+d%s%n", label, liveCount(), growth, details);
+        return growth;
+    }
+}
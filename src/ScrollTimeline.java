@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * ScrollTimeline is the piecewise-linear scroll position of the notes over time.
+ * Every speed change starts a new segment, so the distance a note has travelled between its spawn
+ * frame and any other frame is found with a binary search over the k segments instead of adding
+ * the speed to every note on every frame.
+ *
+ * The scroll position of frame f is the distance scrolled by all frames before f. A speed change
+ * made during frame f already applies to the movement at the end of frame f. A chart played at a
+ * different rate scrolls that much faster, so notes still take the song time they were charted to
+ * take from spawning to the hit line.
+ */
+public class ScrollTimeline
+{
+    /**
+     * The first frame of each segment, the scroll position at that frame and the speed during it.
+     */
+    private int[] segmentFrame = new int[8];
+    private long[] segmentScroll = new long[8];
+    private int[] segmentSpeed = new int[8];
+    private int count = 1;
+
+    /**
+     * The play rate the speeds are scaled by.
+     */
+    private final double rate;
+
+    /**
+     * Creates a timeline scrolling at a constant speed from frame 0.
+     * @param speed The initial speed in pixels per frame.
+     */
+    public ScrollTimeline(int speed)
+    {
+        this(speed, 1);
+    }
+
+    /**
+     * Creates a timeline scrolling at a constant speed from frame 0, for a chart played at a rate.
+     * @param speed The initial speed in pixels per frame at rate 1.
+     * @param rate The play rate of the chart; 1.25 scrolls 25% faster.
+     */
+    public ScrollTimeline(int speed, double rate)
+    {
+        segmentSpeed[0] = speed;
+        this.rate = rate;
+    }
+
+    /**
+     * Changes the speed from the given frame on. Frames must not go backwards.
+     * @param frame The frame the change happens in.
+     * @param speed The new speed in pixels per frame.
+     */
+    public void changeSpeed(int frame, int speed)
+    {
+        int last = count - 1;
+        if (frame < segmentFrame[last])
+            throw new IllegalArgumentException("speed change at frame " + frame + " before frame " + segmentFrame[last]);
+        if (frame == segmentFrame[last])
+        {
+            segmentSpeed[last] = speed;
+            return;
+        }
+        if (count == segmentFrame.length)
+        {
+            segmentFrame = Arrays.copyOf(segmentFrame, count * 2);
+            segmentScroll = Arrays.copyOf(segmentScroll, count * 2);
+            segmentSpeed = Arrays.copyOf(segmentSpeed, count * 2);
+        }
+        segmentScroll[count] = scroll(frame);
+        segmentFrame[count] = frame;
+        segmentSpeed[count] = speed;
+        ++count;
+    }
+
+    /**
+     * Drops every speed change made after the given frame, used when seeking backwards.
+     * @param frame The frame to keep the timeline up to.
+     */
+    public void truncate(int frame)
+    {
+        while (count > 1 && segmentFrame[count - 1] > frame) --count;
+    }
+
+    /**
+     * Returns the scroll position at the start of a frame, in O(log k).
+     * @param frame The frame.
+     * @return The total distance scrolled by all frames before it.
+     */
+    public long position(int frame)
+    {
+        long scroll = scroll(frame);
+        return rate == 1 ? scroll : Math.round(scroll * rate);
+    }
+
+    /**
+     * @param frame The frame.
+     * @return The distance scrolled by all frames before it at rate 1.
+     */
+    private long scroll(int frame)
+    {
+        int lo = 0, hi = count - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segmentFrame[mid] < frame) lo = mid;
+            else hi = mid - 1;
+        }
+        return segmentScroll[lo] + (long) Math.max(0, frame - segmentFrame[lo]) * segmentSpeed[lo];
+    }
+
+    /**
+     * Returns how far a note spawned at one frame has travelled by another frame.
+     * @param spawnFrame The frame the note spawns at.
+     * @param frame The frame to measure at.
+     * @return The distance in pixels, 0 if the note has not spawned yet.
+     */
+    public int distance(int spawnFrame, int frame)
+    {
+        if (frame <= spawnFrame) return 0;
+        return (int) (position(frame) - position(spawnFrame));
+    }
+
+    /**
+     * @return The speed of the last segment at rate 1.
+     */
+    public int currentSpeed()
+    {
+        return segmentSpeed[count - 1];
+    }
+}
@@ -1,20 +1,18 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
-import java.util.HashMap;
 import java.util.Map;
 import bagel.*;
-import bagel.util.Vector2;
 
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
-import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * ShadowDance class represents the main game class for the Shadow Dance game.
- * It extends the AbstractGame class and implements game logic and rendering.
+ * It extends the AbstractGame class and handles the menus, input and rendering;
+ * the rules of a level run in a {@link Simulation}.
  * @author yellowcode
  * @version 1.0
  * @since 2023-10-12
@@ -24,29 +22,107 @@ public class ShadowDance extends AbstractGame
     /**
      * The width,height and title of the game window.
      */
-    private final static Integer WINDOW_WIDTH = 1024;
-    private final static Integer WINDOW_HEIGHT = 768;
+    private final static Integer WINDOW_WIDTH = Simulation.WINDOW_WIDTH;
+    private final static Integer WINDOW_HEIGHT = Simulation.WINDOW_HEIGHT;
     private final static String GAME_TITLE = "SHADOW DANCE";   
+    /**
+     * The tick rate of the logic thread, set with {@code -Dshadowdance.logicHz}.
+     * With 0 the game logic runs inside the render loop instead.
+     * The game logic advances one frame of the chart every FRAME_NANOS on the logic thread.
+     */
+    private final static int LOGIC_HZ = Integer.getInteger("shadowdance.logicHz", 1000);
+    private final static long FRAME_NANOS = 1_000_000_000L / Simulation.FRAME_RATE;
+    /**
+     * Whether the data-parallel update passes may fork onto the pool.
+     * Disable with {@code -Dshadowdance.parallel=false} to compare against single-threaded mode.
+     */
+    private final static boolean PARALLEL = !"false".equals(System.getProperty("shadowdance.parallel"));
+    /**
+     * Whether the input and frame latencies are printed when a level ends, enabled with {@code -Dshadowdance.latencyReport=true}.
+     */
+    private final static boolean LATENCY_REPORT = Boolean.getBoolean("shadowdance.latencyReport");
+    /**
+     * The keys of each player, in the order of {@link KeyEdges}: left, right, up, down, special and shoot.
+     * A single player plays with the arrow keys; in a versus game every player gets a block of letters,
+     * and the fourth player the arrow keys.
+     */
+    private final static Keys[] SOLO_KEYS = { Keys.LEFT, Keys.RIGHT, Keys.UP, Keys.DOWN, Keys.SPACE, Keys.LEFT_SHIFT };
+    private final static Keys[][] VERSUS_KEYS = {
+        { Keys.A, Keys.D, Keys.W, Keys.S, Keys.Q, Keys.E },
+        { Keys.J, Keys.L, Keys.I, Keys.K, Keys.U, Keys.O },
+        { Keys.F, Keys.H, Keys.T, Keys.G, Keys.R, Keys.Y },
+        { Keys.LEFT, Keys.RIGHT, Keys.UP, Keys.DOWN, Keys.N, Keys.M },
+    };
+    private final static int MAX_PLAYERS = VERSUS_KEYS.length;
+    /**
+     * The asset manifest, read and checked at startup so a missing asset stops the game before it opens.
+     * The font every text is drawn in.
+     */
+    private final static AssetManifest ASSETS = AssetManifest.get();
+    private final static String FONT_FILE = ASSETS.file(ASSETS.id(AssetManifest.Kind.FONT, "FSO8BITR"));
 
     /**
      * Enumeration representing different game states.
      */
     private enum GameState {
-        START, PLAY, END, WIN, LOSE
-    }
-    /**
-     * Enumeration representing different types of musical notes in the game.
-     */
-    private enum NoteType{
-        NORMAL , HOLD , SPECIAL , BOMB
+        START, PLAY, END, WIN, LOSE, CALIBRATE
     }
-    private GameState gameState = GameState.START;
+    private volatile GameState gameState = GameState.START;
     private Integer gameLevel = 1 ; 
-    private Integer frameCount = 0;
 
     private Screen screen = null ; 
     private Score score = null ;
-    private ObjectsManager obm = null ;
+
+    /**
+     * The players of the current level, each with their own simulation of the shared chart.
+     * The number of players the next level starts with, chosen in the level select or with {@code -Dshadowdance.players}.
+     */
+    private Player[] players = new Player[0] ; 
+    private int playerCount = Math.max(1, Math.min(MAX_PLAYERS, Integer.getInteger("shadowdance.players", 1))) ; 
+
+    /**
+     * The input latency of this machine in microseconds, made up for by judgment; see {@link Calibration}.
+     * The calibration in progress, or null.
+     * The key edges of the calibration.
+     */
+    private int inputOffset = Calibration.load() ; 
+    private Calibration calibration = null ; 
+    private final KeyEdges calibrationKeys = new KeyEdges() ; 
+
+    /**
+     * The gameplay event log, or null if logging is disabled.
+     * The game state last written to the event log.
+     */
+    private final EventLog eventLog = EventLog.openDefault();
+    /**
+     * The mixer playing the music and hit sounds, or null if audio is disabled or unavailable.
+     */
+    private final SoundMixer mixer = SoundMixer.openDefault();
+    /**
+     * The live state published for overlays every frame, or null if it is not enabled.
+     */
+    private final LiveState live = LiveState.openDefault();
+    private GameState loggedState = null ; 
+
+    /**
+     * The charts available in the level select, scanned once at startup.
+     * The index of the chart selected in the level select.
+     */
+    private final List<ChartLibrary.ChartInfo> charts = ChartLibrary.scanDefault();
+    private int selectedChart = 0 ; 
+
+    /**
+     * The thread running the game logic while a level is played, or null when it runs in the render loop.
+     * The time between two calls of {@code update}, and the time of the last call.
+     */
+    private LogicThread logic = null ; 
+    /**
+     * The live native resources when the current level started, and when the current game was created.
+     */
+    private Map<String, Integer> levelResources = null ; 
+    private Map<String, Integer> retryResources = null ; 
+    private final LatencyStats frameTimes = new LatencyStats("frame time");
+    private long lastFrameNanos = 0 ; 
 
     /**
      * Constructs a new ShadowDance game.
@@ -58,18 +134,119 @@ public class ShadowDance extends AbstractGame
         newGame();
     }
     /**
-     * Starts a new game by initializing game state, level, frame count, and game objects.
+     * Starts a new game by initializing game state, level, and the screen.
      */
     private void newGame() 
     {
         gameState = GameState.START;
         gameLevel = 1 ; 
-        frameCount = 0;
 
         screen = new Screen(); 
         score = new Score() ; 
-        obm = new ObjectsManager() ; 
-        obm.readCSV(); 
+        players = new Player[0] ; 
+        if ( retryResources != null ) ResourceTracker.report(retryResources, "retry") ; 
+        retryResources = ResourceTracker.snapshot() ; 
+    }
+    /**
+     * Starts playing a chart: reads it once, creates a simulation of it for every player with the rules of its level
+     * and starts the logic thread. The chart is read with the transforms configured with {@code -Dshadowdance.transform};
+     * all players face the same enemies.
+     * @param chart The chart to play.
+     * @param startFrame The frame to start the song at, or null to start from the beginning.
+     */
+    private void startLevel(ChartLibrary.ChartInfo chart, Integer startFrame)
+    {
+        String transform = ChartTransform.resolve(System.getProperty("shadowdance.transform")) ; 
+        Chart rows ; 
+        try {
+            rows = Chart.read(chart.path, transform) ; 
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ; 
+        }
+        gameLevel = chart.level ; 
+        long seed = System.nanoTime() ; 
+        players = new Player[playerCount] ; 
+        for (int i = 0; i < playerCount; ++i)
+            players[i] = new Player(i, rows, chart, transform, seed, startFrame) ; 
+        preload(); 
+        levelResources = ResourceTracker.snapshot() ; 
+        gameState = GameState.PLAY;
+        if ( mixer != null ) mixer.startMusic(players[0].sim.frame(), rows.rate) ; 
+        loggedState = gameState ; 
+        logEvent(EventLog.GAME_STATE, 0, gameState.ordinal(), gameLevel);
+        if ( eventLog != null ) eventLog.chart(players[0].sim.frame(), transform.isEmpty() ? chart.path : chart.path + " " + transform) ; 
+        if ( LOGIC_HZ > 0 )
+        {
+            logic = new LogicThread(LOGIC_HZ) ; 
+            logic.start() ; 
+        }
+    }
+    /**
+     * Loads every image the level can draw, so that nothing is created in the middle of the song.
+     */
+    private void preload()
+    {
+        for (int image : players[0].sim.images())
+            ResourceTracker.image(image);
+    }
+    /**
+     * @return True once every player's simulation has reached an outcome.
+     */
+    private boolean allFinished()
+    {
+        for (Player player : players)
+            if ( player.sim.state() == Simulation.State.PLAY ) return false ;
+        return true ;
+    }
+    /**
+     * Ends the level once every player has reached an outcome: stops the logic thread and saves the replays.
+     * A single player goes to the clear or try-again screen, a versus game to the results.
+     */
+    private void finishLevel()
+    {
+        if ( logic != null ) stopLogic() ; 
+        for (Player player : players) player.saveReplay() ; 
+        if ( players.length > 1 ) gameState = GameState.END ; 
+        else gameState = players[0].sim.state() == Simulation.State.WIN ? GameState.WIN : GameState.LOSE ; 
+    }
+    /**
+     * Orders players by their result: players who cleared the chart come first, the earliest to clear it first;
+     * otherwise the higher score comes first.
+     * @param a The first player.
+     * @param b The second player.
+     * @return A negative number if a ranks before b, 0 if they are tied.
+     */
+    private int compareResults(Player a, Player b)
+    {
+        boolean aWon = a.sim.state() == Simulation.State.WIN , bWon = b.sim.state() == Simulation.State.WIN ; 
+        if ( aWon != bWon ) return aWon ? -1 : 1 ; 
+        if ( aWon && a.sim.frame() != b.sim.frame() ) return Integer.compare(a.sim.frame(), b.sim.frame()) ; 
+        return Integer.compare(b.sim.currentScore(), a.sim.currentScore()) ; 
+    }
+    /**
+     * Stops the logic thread once the level is over, and reports its latencies if {@link #LATENCY_REPORT} is on.
+     */
+    private void stopLogic()
+    {
+        logic.shutdown() ; 
+        if ( LATENCY_REPORT )
+        {
+            System.out.println(logic.judgeLatency.summary());
+            System.out.println(frameTimes.summary());
+        }
+        logic = null ; 
+    }
+    /**
+     * Finds a chart in the library by name.
+     * @param name The chart name.
+     * @return The chart, or null if there is no chart with that name.
+     */
+    private ChartLibrary.ChartInfo findChart(String name)
+    {
+        for (ChartLibrary.ChartInfo chart : charts)
+            if ( chart.name().equals(name) ) return chart ;
+        return null ; 
     }
     /**
      * Entry point of the game. Creates a new instance of ShadowDance and runs the game.
@@ -86,9 +263,130 @@ public class ShadowDance extends AbstractGame
     @Override
     protected void update(Input input) 
     {
+        long now = System.nanoTime() ; 
+        if ( lastFrameNanos != 0 ) frameTimes.record(now - lastFrameNanos) ; 
+        lastFrameNanos = now ; 
+        if ( gameState == GameState.PLAY && allFinished() ) finishLevel() ; 
+
         screen.Draw(input);
-        ++frameCount ; 
-        obm.Draw(input);  
+        play(input, now);  
+        calibrate(input, now);  
+        publishLive();
+        if ( gameState != loggedState )
+        {
+            if ( mixer != null && gameState != GameState.PLAY ) mixer.stopMusic() ; 
+            if ( loggedState == GameState.PLAY && levelResources != null ) 
+                ResourceTracker.report(levelResources, "level " + gameLevel) ; 
+            loggedState = gameState ; 
+            logEvent(EventLog.GAME_STATE, 0, gameState.ordinal(), gameLevel);
+        }
+    }
+    /**
+     * Runs the level for one rendered frame while it is played, for every player.
+     * @param input The input from the players.
+     * @param now The time the input was polled, from {@link System#nanoTime()}.
+     */
+    private void play(Input input, long now) 
+    {
+        if ( gameState != GameState.PLAY ) return ; 
+        for (Player player : players) 
+        {
+            player.play(input, now) ; 
+        }
+    }
+    /**
+     * Publishes the game state and every player's last shown frame to the live state file.
+     */
+    private void publishLive()
+    {
+        if ( live == null ) return ; 
+        live.begin();
+        live.game(gameState.ordinal(), gameLevel, players.length);
+        for (Player player : players)
+            if ( player.shown != null ) live.player(player.index, player.shown, player.sim.state().ordinal());
+        live.end();
+    }
+    /**
+     * Runs the calibration for one rendered frame: notes fall onto the hit line on every beat and every tap
+     * is timed against its beat. Once every tap is in, the report is shown; ENTER saves the offset as this
+     * machine's and BACKSPACE discards it.
+     * @param input The input from the player.
+     * @param now The time the input was polled, from {@link System#nanoTime()}.
+     */
+    private void calibrate(Input input, long now) 
+    {
+        if ( gameState != GameState.CALIBRATE ) return ; 
+        calibration.frame(now) ; 
+        calibrationKeys.capture(input, now) ; 
+        if ( calibrationKeys.pressedMask() != 0 ) calibration.tap(now) ; 
+        if ( calibration.done() )
+        {
+            String[] report = calibration.report() ; 
+            for (int i = 0; i < report.length; ++i)
+                screen.FONT_ORTHER.drawString(report[i], Window.getWidth() / 2 - screen.FONT_ORTHER.getWidth(report[i])/2, 250 + i * 50);
+            String prompt = "ENTER TO SAVE   BACKSPACE TO DISCARD" ; 
+            screen.FONT_ORTHER.drawString(prompt, Window.getWidth() / 2 - screen.FONT_ORTHER.getWidth(prompt)/2, 550);
+            if ( input.wasPressed(Keys.ENTER) )
+            {
+                try {
+                    calibration.save();
+                    inputOffset = calibration.offsetMicros() ; 
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                newGame() ; 
+            }
+            else if ( input.wasPressed(Keys.BACKSPACE) ) newGame() ; 
+            return ; 
+        }
+        double x = WINDOW_WIDTH / 2.0 ; 
+        double pixelsPerNano = (double) screen.speed * Simulation.FRAME_RATE / 1e9 ; 
+        ResourceTracker.image(screen.CALIBRATION_LANE).draw(x, 384);
+        for (long beat = Math.max(0, calibration.nextBeat(now) - 1); ; ++beat)
+        {
+            double y = Simulation.HIT_LINE - (calibration.beatTime(beat) - now) * pixelsPerNano ; 
+            if ( y < 100 ) break ; 
+            if ( y <= WINDOW_HEIGHT ) ResourceTracker.image(screen.CALIBRATION_NOTE).draw(x, y);
+        }
+        String msg = calibration.nextBeat(now) <= Calibration.WARMUP ? "GET READY" 
+                     : "TAP AS THE NOTES HIT THE LINE " + calibration.taps() + "/" + Calibration.TAPS ; 
+        screen.FONT_ORTHER.drawString(msg, Window.getWidth() / 2 - screen.FONT_ORTHER.getWidth(msg)/2, 60);
+    }
+    /**
+     * Publishes a gameplay event for the current frame to the event log, if logging is enabled.
+     * @param type The event type.
+     * @param lane The lane id of the event.
+     * @param a The first event field.
+     * @param b The second event field.
+     */
+    private void logEvent(short type, int lane, int a, int b)
+    {
+        if ( eventLog != null ) eventLog.publish(players.length == 0 ? 0 : players[0].sim.frame(), type, lane, a, b);
+    }
+    /**
+     * Hooks forwards what happens in a player's simulation to the event log and the mixer.
+     * Called on the thread running the simulation; never allocates or blocks.
+     */
+    private class Hooks implements Simulation.Listener
+    {
+        /**
+         * Whether the events go to the event log; only the first player's do, so the log reads as one session.
+         */
+        private final boolean log ; 
+        private Hooks(boolean log)
+        {
+            this.log = log ; 
+        }
+        @Override
+        public void event(int frame, short type, int lane, int a, int b)
+        {
+            if ( log && eventLog != null ) eventLog.publish(frame, type, lane, a, b);
+        }
+        @Override
+        public void hit(Simulation.NoteType type)
+        {
+            if ( mixer != null ) mixer.trigger(type.ordinal());
+        }
     }
 
     /**
@@ -105,22 +403,53 @@ public class ShadowDance extends AbstractGame
         {
             GraphicsDevice gd = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
             speed = gd.getDisplayMode().getRefreshRate();
-            if ( speed <= 60) speed = 4;
+            if ( speed <= 60 || LOGIC_HZ > 0 ) speed = 4;
             else speed = 2 ; 
         }
-        private final Image BACKGROUND_IMAGE = new Image("res/background.png");
-        private final Font  FONT_TITLE       = new Font("res/FSO8BITR.TTF", 64);
-        private final Font  FONT_ORTHER      = new Font("res/FSO8BITR.TTF", 24);
-        private final Font FONT_MSG = new Font("res/FSO8BITR.TTF", 64);
+        private final Image BACKGROUND_IMAGE = ResourceTracker.image(ASSETS.id(AssetManifest.Kind.SPRITE, "background"));
+        private final int CALIBRATION_LANE = ASSETS.id(AssetManifest.Kind.LANE, "Down");
+        private final int CALIBRATION_NOTE = ASSETS.id(AssetManifest.Kind.NOTE, "Down");
+        private final Font  FONT_TITLE       = ResourceTracker.font(FONT_FILE, 64);
+        private final Font  FONT_ORTHER      = ResourceTracker.font(FONT_FILE, 24);
+        private final Font FONT_MSG = ResourceTracker.font(FONT_FILE, 64);
         private Integer speed = 0; 
+        private final static int LEVEL_ROWS = 8;
+        /**
+         * The song position to start levels at, set with {@code -Dshadowdance.start=<frame>} for practice.
+         */
+        private final Integer START_FRAME = Integer.getInteger("shadowdance.start");
 
         /**
-         * Updates the screen's refresh rate by the specified amount.
-         * @param change The change in speed to be applied.
+         * Draws the scrollable list of charts, keeping the selected chart in view.
          */
-        private void updateSpeed(Integer change)
+        private void drawLevelSelect()
         {
-            speed += change ; 
+            int first = Math.max(0, Math.min(selectedChart - LEVEL_ROWS / 2, charts.size() - LEVEL_ROWS)) ; 
+            for (int i = first; i < Math.min(charts.size(), first + LEVEL_ROWS); ++i)
+            {
+                ChartLibrary.ChartInfo chart = charts.get(i) ; 
+                String row = String.format("%s %-10s %2d LANES %4d NOTES %5.1fS %4.1f/S", i == selectedChart ? ">" : " ",
+                                           chart.name().toUpperCase(), chart.laneCount(), chart.noteCount, chart.seconds(), chart.density) ; 
+                FONT_ORTHER.drawString(row, 60, 360 + (i - first) * 40);
+            }
+            if ( charts.isEmpty() ) FONT_ORTHER.drawString("NO CHARTS FOUND", 60, 360);
+        }
+        /**
+         * Draws the results of a versus game: the winner, or a draw, and every player's outcome and score in ranking order.
+         */
+        private void drawResults()
+        {
+            Player[] ranking = players.clone() ; 
+            Arrays.sort(ranking, ShadowDance.this::compareResults) ; 
+            String title = compareResults(ranking[0], ranking[1]) == 0 ? "DRAW" : "PLAYER " + (ranking[0].index + 1) + " WINS" ; 
+            FONT_MSG.drawString(title, Window.getWidth() / 2 - FONT_MSG.getWidth(title)/2, 250);
+            for (int i = 0; i < ranking.length; ++i)
+            {
+                Simulation sim = ranking[i].sim ; 
+                String row = String.format("%d.  P%d  %-6s %6d", i + 1, ranking[i].index + 1,
+                                           sim.state() == Simulation.State.WIN ? "CLEAR" : "OUT", sim.currentScore()) ; 
+                FONT_ORTHER.drawString(row, Window.getWidth() / 2 - FONT_ORTHER.getWidth(row)/2, 360 + i * 50);
+            }
         }
         /**
          * Draws the game screen components based on the current game state and user input.
@@ -137,40 +466,53 @@ public class ShadowDance extends AbstractGame
             switch (gameState) {
             case START:
             {
-                if ( input.wasPressed(Keys.NUM_1)) 
+                ChartLibrary.ChartInfo chart = null ; 
+                if ( input.wasPressed(Keys.NUM_1)) chart = findChart("level1") ; 
+                else if (input.wasPressed(Keys.NUM_2)) chart = findChart("level2") ; 
+                else if (input.wasPressed(Keys.NUM_3)) chart = findChart("level3") ; 
+                else if (input.wasPressed(Keys.ENTER) && !charts.isEmpty()) chart = charts.get(selectedChart) ; 
+                else if (input.wasPressed(Keys.UP) && selectedChart > 0) --selectedChart ; 
+                else if (input.wasPressed(Keys.DOWN) && selectedChart < charts.size() - 1) ++selectedChart ; 
+                else if (input.wasPressed(Keys.TAB)) playerCount = playerCount % MAX_PLAYERS + 1 ; 
+                else if (input.wasPressed(Keys.C)) 
                 {
-                    gameLevel = 1 ; 
-                    gameState = GameState.PLAY;
+                    calibration = new Calibration(System.nanoTime() + Calibration.BEAT_NANOS) ; 
+                    gameState = GameState.CALIBRATE ; 
                 }
-                else if (input.wasPressed(Keys.NUM_2))
+                if ( chart != null )
                 {
-                    gameLevel = 2 ;  
-                    gameState = GameState.PLAY;
-                } 
-                else if (input.wasPressed(Keys.NUM_3))
-                {
-                    gameLevel = 3 ; 
-                    gameState = GameState.PLAY;
-                } 
+                    startLevel(chart, START_FRAME) ; 
+                }
                 FONT_TITLE.drawString("SHADOW DANCE", 220, 250-64);
-                FONT_ORTHER.drawString("SELECT LEVELS WITH", 340, 250-64+190-24);
-                FONT_ORTHER.drawString("NUMBER KEYS", 405, 250-64+190-24+40);
-                FONT_ORTHER.drawString("1 2 3", 465, 250-64+190-24+40+80);
-
+                FONT_ORTHER.drawString("UP DOWN TO SELECT   ENTER TO PLAY", 
+                                    Window.getWidth() / 2 - FONT_ORTHER.getWidth("UP DOWN TO SELECT   ENTER TO PLAY")/2, 250-64+190-24-60);
+                drawLevelSelect();
+                String seats = playerCount == 1 ? "1 PLAYER   TAB FOR VERSUS" : playerCount + " PLAYERS   TAB TO CHANGE" ; 
+                FONT_ORTHER.drawString(seats, Window.getWidth() / 2 - FONT_ORTHER.getWidth(seats)/2, 720);
+                String offset = String.format("C TO CALIBRATE INPUT (%+.1f MS)", inputOffset / 1000.0) ; 
+                FONT_ORTHER.drawString(offset, Window.getWidth() / 2 - FONT_ORTHER.getWidth(offset)/2, 755);
                 break ; 
             }
-            case PLAY:
+            case END:
             {
-                score.Draw();
+                drawResults();
+                FONT_ORTHER.drawString("PRESS SPACE TO RETURN TO LEVEL SELECTION", 
+                                    Window.getWidth() / 2 - FONT_ORTHER.getWidth("PRESS SPACE TO RETURN TO LEVEL SELECTION")/2, 650);
+                if (input.wasPressed(Keys.SPACE)) 
+                {
+                    newGame() ; 
+                }
                 break;
             }
             case WIN:
             {
                 FONT_MSG.drawString("CLEAR!", Window.getWidth() / 2 - FONT_MSG.getWidth("CLEAR!")/2, Window.getHeight() / 2 - 20);
+                score.drawSummary();
                 break;
             }
             case LOSE:
             {
+                score.drawSummary();
                 FONT_MSG.drawString("TRY AGAIN", Window.getWidth() / 2 - FONT_MSG.getWidth("TRY AGAIN")/2, Window.getHeight() / 2 - 20);
                 FONT_ORTHER.drawString("PRESS SPACE TO RETURN TO LEVEL SELECTION", 
                                     Window.getWidth() / 2 - FONT_ORTHER.getWidth("PRESS SPACE TO RETURN TO LEVEL SELECTION")/2, 500);
@@ -187,8 +529,8 @@ public class ShadowDance extends AbstractGame
         }
     }
     /**
-     * The Score class manages the game score, messages for scoring, and related visual elements.
-     * It handles updating and displaying the player's score, game's messages, and game state based on player performance.
+     * The Score class draws the score, the messages for scoring and the timing summary of the level.
+     * The score itself is kept by the simulation.
      */
     private class Score
     {
@@ -197,865 +539,286 @@ public class ShadowDance extends AbstractGame
          * The font used for displaying the current score.
          * The font used for displaying score-related messages.
          */
-        private final Font  FONT_SCORE       = new Font("res/FSO8BITR.TTF", 30);
-        private final Font  FONT_MSG_SCORE   = new Font("res/FSO8BITR.TTF", 40);
-        
-        /**
-         * The current score of the player.
-         * The current message to be displayed (e.g., "PERFECT", "GOOD", "BAD", "MISS").
-         * The frame count for displaying the current message.
-         * The frame count for handling 2x score change.
-         * The multiplier for score change.
-         */
-        private Integer currentScore = 0;
-        private String currentMsg = "" ; 
-        private Integer frameMsgCount = 0;
-        private Integer frame2xCount = 0 ; 
-        private Integer XscoreChange = 1 ; 
+        private final Font  FONT_SCORE       = ResourceTracker.font(FONT_FILE, 30);
+        private final Font  FONT_MSG_SCORE   = ResourceTracker.font(FONT_FILE, 40);
+        private final Font  FONT_SUMMARY     = ResourceTracker.font(FONT_FILE, 16);
 
         /**
          * Displays the current score on the game screen.
+         * @param label The label in front of the score.
+         * @param currentScore The score to show.
+         * @param left The left edge of the player's view.
          */
-        private void showScore()
+        private void showScore(String label, int currentScore, double left)
         {
-            FONT_SCORE.drawString("SCORE " + currentScore, 35, 35);
+            FONT_SCORE.drawString(label + currentScore, left + 35, 35);
         }
         /**
          * Displays the current score-related message on the game screen.
+         * @param font The font to show it in.
+         * @param currentMsg The message to show.
+         * @param centre The centre of the player's view.
          */
-        private void showMsg()
-        {
-            FONT_MSG_SCORE.drawString(currentMsg, Window.getWidth() / 2 - FONT_MSG_SCORE.getWidth(currentMsg)/2, Window.getHeight() / 2 - 20);
-        }
-        /**
-         * Updates the score change multiplier by the specified amount.
-         * @param change The change in the score change multiplier.
-         */
-        private void updateScoreChange(Integer change)
-        {
-            XscoreChange = change ; 
-            frame2xCount = 0 ; 
-        }
-        /**
-         * Updates the current message to be displayed.
-         * @param msg The new message to be displayed.
-         */
-        private void updateCurrentMsg(String msg)
-        {
-            currentMsg = msg ; 
-            frameMsgCount = 0 ; 
-        }
-        /**
-         * increase the score.
-         * @param change The change in the score change multiplier.
-         */
-        private void updateScore(Integer score)
+        private void showMsg(Font font, String currentMsg, double centre)
         {
-            currentScore += score ; 
+            font.drawString(currentMsg, centre - font.getWidth(currentMsg)/2, Window.getHeight() / 2 - 20);
         }
         /**
-         * Updates the player's score based on the given distance and returns the corresponding message.
-         * @param distance The distance of the player's performance.
-         * @return The message indicating the player's performance ("PERFECT", "GOOD", "BAD", "MISS").
+         * Draws the timing-accuracy summary of the session: bias and spread per lane and note type,
+         * the accuracy, and the histogram of timing errors over all lanes.
          */
-        private String callScore(double distance) 
+        private void drawSummary()
         {
-            String message = "";
-            Integer scoreChange = 0 ;
-            if (distance <= 0) 
+            TimingStats timing = players[0].sim.timing() ; 
+            double y = 40 ; 
+            FONT_SUMMARY.drawString(String.format("ACCURACY %.1f%%   LAST %d %.1f%%", timing.accuracy() * 100,
+                                    TimingStats.ROLLING, timing.rollingAccuracy() * 100), 35, y);
+            y += 30 ; 
+            for (int i = 1; i < TimingStats.LANES; ++i)
             {
-                scoreChange = 0;
-                message = "";
-            } 
-            else if (distance <= 15) 
-            {
-                scoreChange = 10;
-                message = "PERFECT";
+                TimingStats.Group g = timing.lane(i) ; 
+                if ( g.count + g.misses == 0 ) continue ;
+                FONT_SUMMARY.drawString(String.format("%-7s %3d HIT %3d MISS %+5.1f PX %s", TimingStats.LANE_NAMES[i],
+                                        g.count, g.misses, g.bias(), g.bias() < 0 ? "EARLY" : "LATE"), 35, y);
+                y += 22 ; 
             }
-            else if (distance <= 50) 
-            {
-                scoreChange = 5;
-                message = "GOOD";
-            } 
-            else if (distance <= 100) 
-            {
-                scoreChange = -1;
-                message = "BAD";
-            } 
-            else if (distance <= 200) 
-            {
-                scoreChange = -5;
-                message = "MISS";
-            } 
-            else 
-            {
-                scoreChange = -5;
-                message = "MISS";
+            y += 8 ; 
+            for (int i = 0; i < TimingStats.TYPES; ++i)
+            {
+                TimingStats.Group g = timing.type(i) ; 
+                if ( g.count + g.misses == 0 ) continue ;
+                FONT_SUMMARY.drawString(String.format("%-7s %3d HIT %3d MISS %+5.1f PX", TimingStats.TYPE_NAMES[i],
+                                        g.count, g.misses, g.bias()), 35, y);
+                y += 22 ; 
             }
-            currentScore = currentScore + scoreChange * XscoreChange ;
-            if ( (currentScore >= 150 && gameLevel == 1 )|| 
-                (currentScore >= 400 && gameLevel == 2 )|| 
-                (currentScore >= 350 && gameLevel == 3 ) ) 
-                    gameState = GameState.WIN;
-
-            currentMsg = message ; 
-            frameMsgCount = 0 ; 
 
-            return message ; 
-        }
-        /**
-         * Updates the frame counts for handling score change multipliers and displaying messages.
-         */
-        private void updateFrame()
-        {
-            ++frameMsgCount ; 
-            ++frame2xCount;
-            if ( frameMsgCount > 30 )
-            {
-                updateCurrentMsg(""); 
-            }
-            if ( frame2xCount == 480 ) 
-            {
-                updateScoreChange(1) ; 
+            int[] bins = new int[TimingStats.BINS] ; 
+            int max = 1 ; 
+            for (int i = 0; i < TimingStats.LANES; ++i)
+                for (int b = 0; b < TimingStats.BINS; ++b)
+                    bins[b] += timing.lane(i).histogram[b] ; 
+            for (int b : bins) max = Math.max(max, b) ; 
+            double x = 640 ; 
+            FONT_SUMMARY.drawString("EARLY   ERROR   LATE", x, 40);
+            for (int b = 0; b < TimingStats.BINS; ++b)
+            {
+                int height = bins[b] * 200 / max ; 
+                for (int h = 0; h < height; h += 8)
+                    FONT_SUMMARY.drawString("|", x + b * 8, 260 - h);
             }
         }
         /**
-         * Draws the current score and score-related messages on the game screen.
+         * Draws the score and score-related message of a recorded frame in a player's view.
+         * In a versus game the score is labelled with the player, and a player who has finished is shown their outcome.
+         * @param frame The recorded frame.
+         * @param player The player.
          */
-        private void Draw()
-        {
-            showScore() ; 
-            showMsg() ; 
-        }
-    }
-    /**
-     * The ObjectsManager class manages the game objects such as notes, enemies, arrows, and the game lane.
-     * It handles reading level data from a CSV file, updating and drawing notes, enemies, and arrows on the game screen.
-     */
-    private class ObjectsManager
-    {
-        private ObjectsManager()
+        private void Draw(RenderBuffer frame, Player player)
         {
-        }
-        /**
-         * The game lane where the notes appear.
-         * The list of notes in the game.
-         * The guardian object controlled by the player.
-         * The list of enemies in the game (applicable for level 3).
-         * The list of arrows in the game (applicable for level 3).
-         */
-        private Lane lane = new Lane() ;
-        private List<Note> notes = new ArrayList<>();
-        private Guardian guardian = new Guardian();
-        private List<Enemy> enemies = new ArrayList<>();
-        private List<Arrow> arrows = new ArrayList<>(); 
-
-        /**
-         * The file path to the CSV file containing level data.
-         */
-        private final static String filePath = "res/level3.csv";
-        /**
-         * Reads level data from the CSV file and initializes game objects accordingly.
-         */
-        private void readCSV() 
-        {
-            try {
-                Scanner scanner = new Scanner(new File(filePath));
-                while (scanner.hasNextLine()) {
-                    String line = scanner.nextLine();
-                    String[] parts = line.split(",");
-                    String laneName ="" , type = ""; 
-                    Integer frame = 0;
-                    if (parts.length == 3) 
-                    {
-                        laneName = parts[0].trim();
-                        type = parts[1].trim();
-                        frame = Integer.parseInt(parts[2].trim());
-                        if ( type.equals("DoubleScore")) type = "2x";
-                    }
-                    if ( laneName.equals("Lane")) lane.setX(type, frame);
-                    else
-                    {
-                        if ( type.equals("Hold"))
-                            notes.add(new HoldNote(NoteType.HOLD,frame,laneName));
-                        else if (type.equals("Normal"))
-                            notes.add(new NormalNote(NoteType.NORMAL,frame,laneName));
-                        else if (type.equals("Bomb"))
-                            notes.add(new BombNote(NoteType.BOMB,frame,laneName));
-                        else notes.add(new SpecialNote(NoteType.SPECIAL,frame,type,"Special"));
-                    } 
-                }
-                scanner.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
-        }
-        /**
-         * Draws the notes on the game screen and checks for player performance to update the score and game state.
-         * @param input The input from the player.
-         */
-        public void DrawNote(Input input)
-        {
-            score.updateFrame() ;
-            for (Note note : notes) 
-                if (frameCount >= note.frame && note.Y <= Window.getHeight() && !note.isCleared ) 
-                {
-                    note.Draw(input) ; 
-                    note.Y += screen.speed ; 
-                }
-            if (notes.get(notes.size()-1).Y >  Window.getHeight()) 
-            {
-                gameState = GameState.LOSE;
-            }
-        }
-        /**
-         * Draws the enemies on the game screen (applicable for level 3).
-         */
-        public void DrawEnemy()
-        {
-            if ( gameLevel == 3 )
-            {
-                if ( frameCount % 600 == 0) enemies.add(new Enemy());
-                for (Enemy enemy : enemies) 
-                    {
-                        enemy.Draw() ;
-                    }
-            }
-        }
-        /**
-         * Draws the arrows on the game screen (applicable for level 3).
-         */
-        public void DrawArrow()
-        {
-            if ( gameLevel == 3 )
+            double width = (double) Window.getWidth() / players.length ; 
+            double left = player.index * width ; 
+            Font font = players.length > 2 ? FONT_SCORE : FONT_MSG_SCORE ; 
+            if ( players.length == 1 ) 
             {
-                for (Arrow arrow : arrows) 
-                    {
-                        arrow.Draw() ;
-                    }
+                showScore("SCORE ", frame.score, left) ; 
+                showMsg(font, frame.msg, left + width / 2) ; 
+                return ; 
             }
-        }
-        /**
-         * Draws game objects based on the current game state.
-         * @param input The input from the player.
-         */
-        public void Draw(Input input) 
-        {
-            switch (gameState) 
-            {
-            case PLAY:
-            {
-                lane.Draw();
-                DrawEnemy();
-                DrawNote(input);
-                guardian.Draw(input) ; 
-                DrawArrow() ; 
-                break ; 
-            }
-            default:
-                break;
-            }
-        }
-    }
-    /**
-     * The Objects class represents the base class for game objects.
-     * It contains methods for calculating distances between points in the game space.
-     */
-    public class Objects 
-    {
-        /**
-         * The X-coordinate of the object in the game space.
-         * The Y-coordinate of the object in the game space.
-         */
-        protected Integer X = 0 ; 
-        protected Integer Y = 24;
-        /**
-         * Calculates the distance between two points (x1, y1) and (x2, y2) using the Euclidean distance formula.
-         * @param x1 The x-coordinate of the first point.
-         * @param y1 The y-coordinate of the first point.
-         * @param x2 The x-coordinate of the second point.
-         * @param y2 The y-coordinate of the second point.
-         * @return The distance between the two points.
-         */
-        protected double Calculate(Integer x1 , Integer y1, Integer x2, Integer y2)
-        {
-            double dodaiAB = Math.sqrt(Math.pow((x1 - x2), 2) + Math.pow((y1-y2), 2));
-            return dodaiAB ; 
-        }
-    }
-    /**
-     * The Lane class represents the game lanes where notes and objects move.
-     * It extends the Objects class and manages lane positions and drawing on the game screen.
-     */
-    private class Lane extends Objects 
-    {
-        private Lane(){}
-        /**
-         * A map storing lane names as keys and their corresponding X-coordinates as values.
-         */
-        private Map<String, Integer> cLanes = new HashMap<>();
-        /**
-         * Draws the lanes on the game screen based on their positions.
-         */
-        public void Draw()
-        {
-            for (Map.Entry<String, Integer> entry : cLanes.entrySet()) 
-            {
-                String key = entry.getKey();
-                Integer value = entry.getValue();
-                if ( gameLevel == 1 && key.equals("Special")) continue ;
-                String strImage = "res/lane" + key + ".png" ;  
-                Image LANE_IMAGE = new Image(strImage) ; 
-                LANE_IMAGE.draw(value,384);
-            }
-        }
-        /**
-         * Retrieves the X-coordinate of a specific lane.
-         * @param laneName The name of the lane.
-         * @return The X-coordinate of the specified lane.
-         */
-        public Integer getX(String laneName)
-        {
-            return cLanes.get(laneName);
-        }
-        /**
-         * Sets the X-coordinate of a specific lane.
-         * @param laneName The name of the lane.
-         * @param X The new X-coordinate for the lane.
-         */
-        public void setX(String laneName, Integer X) 
-        {
-            cLanes.put(laneName, X);
+            showScore("P" + (player.index + 1) + " ", frame.score, left) ; 
+            Simulation.State state = player.sim.state() ; 
+            if ( state == Simulation.State.PLAY ) showMsg(font, frame.msg, left + width / 2) ; 
+            else showMsg(font, state == Simulation.State.WIN ? "CLEAR!" : "OUT", left + width / 2) ; 
         }
     }
     /**
-     * The Note class represents different types of notes in the game.
-     * It is an abstract class that extends the Objects class and defines common properties and methods for all note types.
+     * The LogicThread runs the game logic of a level at a fixed tick rate, independently of rendering.
+     * Every tick, for every player still playing, it judges the key edges handed over by the render thread,
+     * advances the chart by every frame that has become due, and publishes the resulting frame to the
+     * player's triple buffer.
+     * Key edges are still polled by the render thread, since bagel only reads input there, but a key edge
+     * is judged against the chart frame it was polled in and within one tick of arriving.
      */
-    abstract class Note extends Objects
+    private class LogicThread extends Thread
     {
         /**
-         * The frame at which the note appears in the game.
-         * The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
-         * The lane name of the note.
-         * A flag indicating whether the note is cleared.
+         * The time between two ticks.
+         * The time from a key edge being polled to it being judged.
          */
-        private Integer frame = 0;
-        private NoteType NoteType ; 
-        public String laneName = "";
-        private boolean isCleared = false ; 
-        /**
-         * Creates a new note with a specified type, frame, and lane name.
-         * @param NoteType The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
-         * @param frame The frame at which the note appears in the game.
-         * @param laneName The lane name of the note.
-         */
-        public Note(NoteType NoteType, Integer frame, String laneName) 
-        {
-            this.NoteType = NoteType;
-            this.frame = frame;
-            this.laneName = laneName ;
-        }
-        /**
-         * Draws the note on the game screen and handles player input.
-         * @param input The input object to check for user input.
-         */
-        abstract void Draw(Input input) ;
-        /**
-         * Checks if the specified action (e.g., Down, Up, Right, Left, Special) is triggered by player input.
-         * @param input The input object to check for user input.
-         * @param str The specific action to check (Down, Up, Right, Left, Special).
-         * @return True if the action is triggered, false otherwise.
-         */
-        public boolean actionUp(Input input,String str)
-        {
-            if (input.wasReleased(Keys.DOWN) && str.equals("Down")) 
-            {
-                return true ;
-            } 
-            else if (input.wasReleased(Keys.UP)&& str.equals("Up")) 
-            {
-                return true ;
-            } 
-            else if(input.wasReleased(Keys.RIGHT)&& str.equals("Right"))
-            {
-                return true ;
-            }
-            else if(input.wasReleased(Keys.LEFT)&& str.equals("Left"))
-            {
-                return true ;
-            }
-            else if(input.wasReleased(Keys.SPACE)&& str.equals("Special"))
-            {
-                return true ; 
-            }
-            return false ;
-        }
-        /**
-         * Checks if the specified action (e.g., Down, Up, Right, Left, Special) is initiated by player input.
-         * @param input The input object to check for user input.
-         * @param str The specific action to check (Down, Up, Right, Left, Special).
-         * @return True if the action is initiated, false otherwise.
-         */
-        public boolean actionDown(Input input, String str)
-        {
-            if (input.wasPressed(Keys.DOWN) && str.equals("Down")) 
-            {
-                return true ; 
-            } 
-            else if (input.wasPressed(Keys.UP)&& str.equals("Up")) 
-            {
-                return true ;
-            } 
-            else if(input.wasPressed(Keys.RIGHT)&& str.equals("Right"))
-            {
-                return true ;
-            }
-            else if(input.wasPressed(Keys.LEFT)&& str.equals("Left"))
-            {
-                return true ; 
-            }
-            else if(input.wasPressed(Keys.SPACE)&& str.equals("Special"))
-            {
-                return true ; 
-            }
-            return false ;
-        }
-    }
-    /**
-     * The NormalNote class represents normal notes in the game.
-     * It extends the Note class and handles the drawing and scoring logic for normal notes.
-     */
-    private class NormalNote extends Note
-    {
-        /**
-         * Creates a new normal note with a specified type, frame, and lane name.
-         * @param NoteType The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
-         * @param frame The frame at which the note appears in the game.
-         * @param laneName The lane name of the note.
-         */
-        public NormalNote(NoteType NoteType, Integer frame, String laneName)
-        {
-            super(NoteType,frame,laneName);
-            this.Y = 100 ;
-            this.X = obm.lane.getX(laneName) ; 
-        }
-        /**
-         * A flag indicating whether the normal note is alive and active.
-         * A flag indicating whether the normal note is scored.
-         */
-        private boolean isAlive = true ; 
-        private boolean isScored = false ; 
+        private final long tickNanos ; 
+        private final LatencyStats judgeLatency = new LatencyStats("input to judgment");
+        private volatile boolean running = true ; 
 
         /**
-         * Draws the normal note on the game screen and handles player input for scoring.
-         * @param input The input object to check for user input.
-         */
-        @Override
-        public void Draw(Input input) 
-        {
-            if ( !this.isAlive) return ;
-            String imageName  = "res/note" + this.laneName + ".png" ; 
-            Image IMAGE = new Image(imageName);
-            IMAGE.draw(this.X, this.Y);
-            boolean nhan = actionDown(input,laneName) ; 
-            String msg = ""; 
-            if ( nhan == true)
-            {
-                double dis = Calculate(X,Y,obm.lane.getX(laneName),657) ; 
-                msg = score.callScore(dis);
-                score.updateCurrentMsg(msg);
-                isScored = true ; 
-            }
-            if ( !isScored && this.Y > Window.getHeight()-1) 
-            {
-                msg = score.callScore(300);
-                score.updateCurrentMsg(msg);
-                isScored = true ; 
-            }     
-        }
-    }
-    /**
-     * The HoldNote class represents hold notes in the game.
-     * It extends the Note class and handles the drawing and scoring logic for hold notes.
-     */
-    private class HoldNote extends Note
-    {
-        /**
-         * Creates a new hold note with a specified type, frame, and lane name.
-         * @param NoteType The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
-         * @param frame The frame at which the note appears in the game.
-         * @param laneName The lane name of the note.
+         * Creates a logic thread.
+         * @param hz The tick rate.
          */
-        public HoldNote(NoteType NoteType, Integer frame, String laneName)
+        private LogicThread(int hz)
         {
-            super(NoteType,frame,laneName);
-            this.X = obm.lane.getX(laneName) ; 
+            super("game-logic");
+            setDaemon(true);
+            tickNanos = 1_000_000_000L / hz ; 
         }
         /**
-         * A flag indicating whether the hold note is alive and active.
-         * The distance pressed by the player on the hold note.
-         * The distance released by the player on the hold note.
-         * A flag indicating whether the hold note is scored.
-         */
-        private boolean isAlive = true ; 
-        private double dPressed = 0 ; 
-        private double dReleased = 0 ; 
-        private boolean isScored = false ;
-        /**
-         * Draws the hold note on the game screen and handles player input for scoring.
-         * @param input The input object to check for user input.
+         * Stops the thread and waits for it to finish.
          */
-        @Override
-        public void Draw(Input input) 
+        private void shutdown()
         {
-            if ( !this.isAlive) return ;
-            String imageName = "res/holdNote" + this.laneName + ".png" ; 
-            Image IMAGE = new Image(imageName);
-            IMAGE.draw(this.X, this.Y);
-            
-            boolean nhan = false , tha = false;
-            String msg = ""; 
-
-            nhan = actionDown(input,laneName) ; 
-            tha = actionUp(input,laneName) ; 
-            
-            if ( nhan == true )
-            {
-                dPressed = Calculate(X,Y+82,obm.lane.getX(laneName),657) ; 
-            }
-            if ( tha == true)
-            {
-                dReleased = Calculate(X,Y-82,obm.lane.getX(laneName),657) ; 
-                double dis = Math.abs(dPressed-dReleased);
-                msg = score.callScore(dis);
-                score.updateCurrentMsg(msg);
-                score.showMsg();
-                isScored = true ; 
-                dPressed = dReleased = 0 ; 
-            }
-            
-            if ( !isScored && this.Y-82 > Window.getHeight()-1-82) 
-            {
-                msg = score.callScore(300);
-                score.updateCurrentMsg(msg);
-                score.showMsg();
-            }
-        }
-    }
-    /**
-     * The BombNote class represents bomb notes in the game.
-     * It extends the Note class and handles the drawing and interaction logic for bomb notes.
-     */
-    private class BombNote extends Note
-    {
-        /**
-         * Creates a new bomb note with a specified type, frame, and lane name.
-         * @param NoteType The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
-         * @param frame The frame at which the note appears in the game.
-         * @param laneName The lane name of the note.
-         */
-        public BombNote(NoteType NoteType, Integer frame, String laneName)
-        {
-            super(NoteType,frame,laneName);
-            this.X = obm.lane.getX(laneName) ; 
-        }
-        /**
-         * A flag indicating whether the bomb note is active.
-         */
-        private boolean isActive = false ; 
-        /**
-         * Clears all notes in the specified list that share the same lane as the bomb note.
-         * @param notes The list of notes to clear.
-         */
-        private void clearNote( List<Note> notes)
-        {
-            for(Note note : notes)
-            if (frameCount >= note.frame && note.Y <= Window.getHeight() && note.laneName.equals(this.laneName) ) 
-            {
-                note.isCleared = true ; 
+            running = false ; 
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
-        /**
-         * Draws the bomb note on the game screen and handles player input for interaction.
-         * @param input The input object to check for user input.
-         */
         @Override
-        public void Draw(Input input) 
+        public void run()
         {
-            if ( this.isActive) return ;
-            Image IMAGE = new Image("res/noteBomb.png");
-            IMAGE.draw(this.X, this.Y);
-
-            boolean nhan = actionDown(input,laneName) ; 
-            if ( nhan == true)
+            KeyEdges none = new KeyEdges() ; 
+            KeyEdges edges = new KeyEdges() ; 
+            long nextTick = System.nanoTime() ; 
+            for (Player player : players) player.nextFrame = nextTick ; 
+            while ( running )
             {
-                double dis = Calculate(X,Y,obm.lane.getX(laneName),657) ; 
-                if ( dis <= 50 )
+                boolean playing = false ; 
+                for (Player player : players)
                 {
-                    isActive = true ; 
-                    clearNote(obm.notes) ; 
-                    score.updateCurrentMsg("LANE CLEAR") ; 
-                }
-            } 
-        }
-    }
-    /**
-     * The SpecialNote class represents special notes in the game.
-     * It extends the Note class and handles the drawing and interaction logic for special notes.
-     */
-    private class SpecialNote extends Note
-    {
-        /**
-         * Creates a new special note with a specified type, frame, and lane name.
-         * @param NoteType The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
-         * @param frame The frame at which the note appears in the game.
-         * @param type The type of the special note (SpeedUp, SlowDown, 2x).
-         * @param laneName The lane name of the note.
-         */
-        public SpecialNote(NoteType NoteType, Integer frame, String type, String laneName)
-        {
-            super(NoteType,frame,laneName);
-            this.type = type;
-            this.X = obm.lane.getX("Special") ; 
-            this.Y = 100 ; 
-        }
-         /**
-         * A flag indicating whether the special note is active.
-         * The type of the special note (SpeedUp, SlowDown, 2x).
-         */
-        private boolean isActive = false ; 
-        private String type = "";
-        /**
-         * Draws the special note on the game screen and handles player input for interaction.
-         * @param input The input object to check for user input.
-         */
-        @Override
-        public void Draw(Input input) 
-        {
-            if ( this.isActive) return ;
-            if ( gameLevel == 1 ) return ;
-            String imageName = "res/note" + this.type + ".png";
-            Image IMAGE = new Image(imageName);
-            IMAGE.draw(this.X, this.Y);
-
-            boolean nhan = actionDown(input,"Special") ; 
-            if ( nhan == true)
-            {
-                double dis = Calculate(X,Y,obm.lane.getX("Special"),657) ; 
-                if ( dis <= 50 )
-                {
-                    isActive = true ; 
-                    if ( type.equals("SpeedUp"))
+                    Simulation sim = player.sim ; 
+                    if ( sim.state() != Simulation.State.PLAY )
                     {
-                        score.updateCurrentMsg("SPEED UP") ; 
-                        score.updateScore(15) ; 
-                        screen.updateSpeed(1);
-                    }   
-                    else if ( type.equals("SlowDown"))
+                        while ( player.queue.poll(edges) ) ; 
+                        continue ; 
+                    }
+                    playing = true ; 
+                    boolean changed = false ; 
+                    while ( player.queue.poll(edges) )
                     {
-                        score.updateCurrentMsg("SLOW DOWN") ; 
-                        score.updateScore(15) ; 
-                        screen.updateSpeed(-1);
+                        while ( player.nextFrame <= edges.nanos() && sim.state() == Simulation.State.PLAY )
+                        {
+                            sim.step(none) ; 
+                            player.nextFrame += FRAME_NANOS ; 
+                        }
+                        sim.judge(edges) ; 
+                        judgeLatency.record(System.nanoTime() - edges.nanos());
+                        changed = true ; 
                     }
-                    else if ( type.equals("2x"))
+                    while ( player.nextFrame <= System.nanoTime() && sim.state() == Simulation.State.PLAY )
                     {
-                        score.updateCurrentMsg("DOUBLE SCORE") ; 
-                        score.updateScoreChange(2);
+                        sim.step(none) ; 
+                        player.nextFrame += FRAME_NANOS ; 
+                        changed = true ; 
                     }
-                }
-            }     
-        }
-    }
-    /**
-     * The Arrow class represents the arrows fired by the guardian to defeat enemies.
-     * It extends the Objects class and handles arrow movement, collision detection, and firing logic.
-     */
-    private class Arrow extends Objects  
-    {
-        private Arrow()
-        {
-        }
-        /**
-         * The rotation angle of the projectile.
-         * The position of the projectile in the game space.
-         * A flag indicating whether the arrow is fired.
-         */
-        private double projectileRotation = 0;
-        private Vector2 projectilePosition = new Vector2( 800,600); 
-        private boolean isFire = false ; 
-
-        /**
-         * Sets the direction of the arrow based on the guardian's position and the nearest enemy.
-         * @param gu The guardian object.
-         * @param e The nearest enemy object.
-         */
-        private void SetDirect(Guardian gu, Enemy e)
-        {
-            Vector2 guardianPosition = new Vector2(gu.X, gu.Y); 
-            Vector2 enemyPosition = new Vector2(e.X,e.Y); 
-            Vector2 direction = enemyPosition.sub(guardianPosition);
-            projectileRotation = Math.atan2(direction.y, direction.x);
-        }
-        /**
-         * Checks if the arrow collides with a specific enemy.
-         * @param enemy The enemy object to check for collision.
-         * @return True if the arrow collides with the enemy, false otherwise.
-         */
-        private boolean checkIntersertion(Enemy enemy )
-        {
-            Vector2 enemyPosition = new Vector2(enemy.X,enemy.Y); 
-            double dx = enemyPosition.x - projectilePosition.x;
-            double dy = enemyPosition.y - projectilePosition.y;
-            double distance = Math.sqrt(dx * dx + dy * dy);
-            if (distance <= 62) return true ; 
-            return false ; 
-        }
-        /**
-         * Draws the arrow and handles its movement, collision detection, and enemy interaction.
-         */
-        public void Draw()
-        {
-            if ( !this.isFire )
-            {
-                Image IMAGE = new Image("res/arrow.png") ; 
-                
-                DrawOptions DrawOption = new DrawOptions();
-                DrawOption.setRotation(projectileRotation);
-                IMAGE.draw(this.projectilePosition.x,this.projectilePosition.y,DrawOption);
-                double _speed = 6.0;
-                double dx = _speed * Math.cos(projectileRotation);
-                double dy = _speed * Math.sin(projectileRotation);
-                projectilePosition = new Vector2(projectilePosition.x + dx, projectilePosition.y + dy);
-                for( Enemy another : obm.enemies)
-                    if ( !another.isFire && checkIntersertion(another))
+                    if ( changed )
                     {
-                        this.isFire = true ; 
-                        another.isFire = true ; 
-                        break ;
+                        sim.record(player.frames.back()) ; 
+                        player.frames.publish() ; 
                     }
-                if (projectilePosition.x < 0 || projectilePosition.x > Window.getWidth()-1 ||
-                projectilePosition.y < 0 || projectilePosition.y > Window.getHeight()-1) 
-                {
-                    this.isFire = true;
                 }
+                if ( !playing ) break ; 
+                nextTick += tickNanos ; 
+                long wait = nextTick - System.nanoTime() ; 
+                if ( wait > 0 ) LockSupport.parkNanos(wait) ; 
+                else nextTick = System.nanoTime() ; 
             }
         }
     }
     /**
-     * The Guardian class represents the guardian character in the game.
-     * It extends the Objects class and manages the guardian's position, shooting logic, and interaction with enemies.
+     * A Player is one seat of a level: their keys, their simulation of the shared chart, the frames handed
+     * from it to the render thread and their replay. All players share the chart, textures and fonts;
+     * a player's own state is the notes on their screen, their score and their scroll speed.
      */
-    private class Guardian extends Objects
+    private class Player
     {
         /**
-         * Creates a new guardian object with a specified initial position.
+         * The player's position, 0 for the first, and their keys.
+         * The player's simulation.
          */
-        private Guardian()
-        {
-            X = 800 ;
-            Y = 600;
-        }
+        private final int index ; 
+        private final Keys[] binding ; 
+        private final Simulation sim ; 
+
         /**
-         * Finds the nearest enemy from a list of enemies.
-         * @param enemies The list of enemies to search for the nearest one.
-         * @return The nearest enemy object, or null if no enemies are nearby.
+         * The recorded frames handed from the game logic to the render thread.
+         * The key edges polled on the render thread this frame, and the queue handing them to the logic thread.
+         * The time the logic thread steps the next chart frame at.
          */
-        public Enemy findNearestEnemy(List<Enemy> enemies)
-        {
-            Enemy nearestEnemy = null; 
-            double dis = 10000; 
-            for (Enemy enemy : enemies) 
-                if ( !enemy.isFire)
-                {
-                    double tmp_dis = Calculate(enemy.X, enemy.Y,this.X,this.Y) ; 
-                    if ( tmp_dis < dis )
-                    {
-                        dis = tmp_dis ; 
-                        nearestEnemy = enemy ; 
-                    }
-                }
-            return nearestEnemy; 
-        } 
+        private final TripleBuffer<RenderBuffer> frames = new TripleBuffer<>(RenderBuffer::new) ; 
+        private final KeyEdges keys = new KeyEdges() ; 
+        private final KeyEdges.Queue queue = new KeyEdges.Queue(256) ; 
+        private long nextFrame = 0 ; 
         /**
-         * Draws the guardian on the game screen and handles shooting logic.
-         * @param input The input object to check for user input.
+         * The frame last drawn for the player, owned by the render thread until the next is acquired.
          */
-        public void Draw(Input input)
-        {
-            if ( gameLevel == 3)
-            {
-                if (input.wasPressed(Keys.LEFT_SHIFT)) 
-                {
-                    Enemy nearestEnemy = findNearestEnemy(obm.enemies) ;   
-                    if ( nearestEnemy != null)
-                    {
-                        Arrow arrow = new Arrow(); 
-                        arrow.SetDirect(this,nearestEnemy) ; 
-                        obm.arrows.add(arrow);
-                    }
-                }
-                Image IMAGE = new Image("res/guardian.png") ; 
-                IMAGE.draw(this.X,this.Y);
-            }
-        } 
-        
-    }
-    /**
-     * The Enemy class represents the enemies in the game.
-     * It extends the Objects class and manages enemy movement, collision detection, and interaction with notes.
-     */
-    private class Enemy extends Objects
-    {
+        private RenderBuffer shown = null ; 
+
         /**
-         * The direction of enemy movement.
-         * A flag indicating whether the enemy is firing arrows.
+         * The player's input and the file it is saved to when the level ends, or null if replays are disabled.
          */
-        int direct = 1 ; 
-        private boolean isFire = false ;
+        private Replay replay = null ; 
+        private Path replayFile = null ; 
+
         /**
-         * Creates a new enemy object with a random initial position and movement direction.
-         */
-        private Enemy()
-        {
-            Random rand = new Random();
-            this.X  = rand.nextInt(900) + 100;
-            this.Y  = rand.nextInt(500) + 100;
-            int randomNumber = rand.nextInt(2);
-            direct = (randomNumber == 0) ? -1 : 1;
+         * Creates a player for a level.
+         * @param index The player's position.
+         * @param rows The shared chart.
+         * @param chart The chart's library entry.
+         * @param transform The transform list the chart was read with.
+         * @param seed The seed placing the enemies, the same for every player.
+         * @param startFrame The frame to start at, or null to start from the beginning.
+         */
+        private Player(int index, Chart rows, ChartLibrary.ChartInfo chart, String transform, long seed, Integer startFrame)
+        {
+            this.index = index ; 
+            binding = playerCount == 1 ? SOLO_KEYS : VERSUS_KEYS[index] ; 
+            sim = new Simulation(rows, gameLevel, screen.speed, seed, new Hooks(index == 0), PARALLEL) ; 
+            sim.setInputOffset(inputOffset) ; 
+            replayFile = Replay.defaultPath(playerCount == 1 ? chart.name() : chart.name() + "-p" + (index + 1)) ; 
+            if ( replayFile != null )
+            {
+                replay = new Replay(chart.path, transform, gameLevel, screen.speed, seed, startFrame == null ? 0 : startFrame, inputOffset) ; 
+                sim.recordTo(replay) ; 
+            }
+            if ( startFrame != null ) sim.seek(startFrame) ; 
         }
         /**
-         * Checks if the enemy is stealing notes from the specified list of notes.
-         * @param notes The list of notes to check for stealing.
+         * Runs the player for one rendered frame. In the render loop, the simulation steps one frame and the
+         * frame is recorded; with a logic thread, the polled key edges are handed over to it instead.
+         * Either way, the latest recorded frame is drawn in the player's view.
+         * @param input The input from the players.
+         * @param now The time the input was polled, from {@link System#nanoTime()}.
          */
-        private void stealNote( List<Note> notes)
+        private void play(Input input, long now)
         {
-            for(Note note : notes)
-            if ( note.NoteType == NoteType.NORMAL )
-                if ( ((NormalNote)note).isAlive)
+            keys.capture(input, now, binding) ; 
+            if ( logic == null )
+            {
+                if ( sim.state() == Simulation.State.PLAY )
                 {
-                    double dis = Calculate(note.X, note.Y, this.X, this.Y);
-                    if ( dis <= 104 ) 
-                    {
-                        ((NormalNote)note).isAlive = false ; 
-                    }
+                    sim.step(keys) ; 
+                    sim.record(frames.back()) ; 
+                    frames.publish() ; 
                 }
+            }
+            else if ( !keys.isEmpty() ) 
+            {
+                queue.offer(keys) ; 
+            }
+            RenderBuffer frame = frames.acquire() ; 
+            shown = frame ; 
+            frame.replay(index * (double) Window.getWidth() / players.length, 1.0 / players.length) ; 
+            score.Draw(frame, this) ; 
         }
         /**
-         * Draws the enemy on the game screen and handles enemy movement and note stealing logic.
+         * Saves the player's replay with the result they reached.
          */
-        public void Draw()
+        private void saveReplay()
         {
-            if ( gameLevel == 3 && !isFire)
-            {
-                Image IMAGE = new Image("res/enemy.png") ; 
-                IMAGE.draw(this.X,this.Y);
-                if ( this.X < 100 ) direct = 1 ; 
-                else if ( this.X > 900 ) direct = -1 ; 
-                this.X += direct ; 
-                stealNote(obm.notes) ; 
+            if ( replay == null ) return ; 
+            replay.finish(sim) ; 
+            try {
+                replay.write(replayFile);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } 
-        
-    }   
+        }
+    }
 }
@@ -0,0 +1,1576 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import bagel.Keys;
+import bagel.util.Vector2;
+
+/**
+ * Simulation runs the rules of one level of Shadow Dance: the notes and their judgment, the score,
+ * the special notes, and the enemies, guardian and arrows. It never touches the window,
+ * so the game runs it on its logic thread and the replay verifier runs it headlessly; both get the
+ * same result from the same chart, seed and input.
+ *
+ * Enemies are placed with a random generator seeded per simulation, so a recorded seed replays them exactly.
+ *
+ * The chart is shared read-only; a simulation only holds the notes that have spawned and not yet left the
+ * screen, so its memory follows the notes on screen rather than the length of the chart. Notes that have
+ * not spawned yet all wait at the spawn point of their lane, so whether an enemy has stolen them is kept
+ * once per lane.
+ *
+ * The systems the frame loop runs are fixed once, when the simulation is created, from the features the chart
+ * declares (see {@link Chart#features(int)}): each is called directly, and one the level does not use is skipped.
+ * Notes are kept in one list per type, so every pass over them calls a single note class.
+ */
+public class Simulation
+{
+    /**
+     * The width and height of the playfield.
+     */
+    public final static Integer WINDOW_WIDTH = 1024;
+    public final static Integer WINDOW_HEIGHT = 768;
+    /**
+     * The number of chart frames per second.
+     * The Y-coordinate of the hit line notes are judged against.
+     */
+    public final static int FRAME_RATE = 60;
+    public final static int HIT_LINE = 657;
+
+    /**
+     * Enumeration representing different types of musical notes in the game.
+     */
+    public enum NoteType{
+        NORMAL , HOLD , SPECIAL , BOMB
+    }
+    /**
+     * Enumeration representing the outcome of the level so far.
+     */
+    public enum State{
+        PLAY , WIN , LOSE
+    }
+    /**
+     * Receives what happens in the simulation, for the event log and the hit sounds.
+     * Called on the thread running the simulation; implementations must not block.
+     */
+    public interface Listener
+    {
+        /**
+         * Called for every gameplay event (see {@link EventLog}).
+         * @param frame The frame the event happened on.
+         * @param type The event type.
+         * @param lane The lane field.
+         * @param a The first event field.
+         * @param b The second event field.
+         */
+        default void event(int frame, short type, int lane, int a, int b) {}
+        /**
+         * Called when a note is hit.
+         * @param type The type of the note that was hit.
+         */
+        default void hit(NoteType type) {}
+    }
+    /**
+     * The listener that ignores everything.
+     */
+    public final static Listener NONE = new Listener() {};
+
+    /**
+     * The level the chart is played at (1, 2 or 3), which gives the features of charts that declare none.
+     * The current frame of the chart.
+     * The outcome so far.
+     * The scroll speed in pixels per frame.
+     */
+    private final Integer gameLevel ;
+    private Integer frameCount = 0;
+    private volatile State state = State.PLAY;
+    private Integer speed = 0;
+
+    /**
+     * The input latency of the machine in chart frames, measured by {@link Calibration}.
+     * The hit line shifted by the distance notes travel during that latency at the current speed,
+     * so that a key is judged where the note was when the player pressed it. Recomputed only when the speed changes.
+     */
+    private double inputOffset = 0;
+    private int hitLine = HIT_LINE;
+
+    private final Score score = new Score() ;
+    private final Chart chart ;
+    private final Listener listener ;
+    private final Random random ;
+    private Replay replay = null ;
+
+    /**
+     * The features of the level.
+     * The score that wins the level.
+     * For every note type, whether its notes are played; notes of other types never spawn.
+     * The lanes drawn, by lane index; the special lane is hidden when the level has no special notes.
+     */
+    private final Set<Chart.Feature> features ;
+    private final int goal ;
+    private final boolean[] played = new boolean[NoteType.values().length] ;
+    private final int[] drawnLanes ;
+
+    /**
+     * Whether the level has enemies, and with them the guardian and its arrows.
+     * Whether its hold, bomb and special notes are played; normal notes always are.
+     * Fixed for the level, so the frame loop calls each system directly and skips the ones the level does not have.
+     */
+    private final boolean hasEnemies ;
+    private final boolean hasHolds ;
+    private final boolean hasBombs ;
+    private final boolean hasSpecials ;
+
+    /**
+     * Creates a simulation of a chart, standing at frame 0.
+     * @param chart The chart to play, shared read-only.
+     * @param level The level the chart is played at.
+     * @param speed The initial scroll speed in pixels per frame.
+     * @param seed The seed placing the enemies.
+     * @param listener The listener receiving events and hits.
+     * @param parallel Whether update passes over many entities may fork onto the common pool.
+     */
+    public Simulation(Chart chart, int level, int speed, long seed, Listener listener, boolean parallel)
+    {
+        this.chart = chart ;
+        this.gameLevel = level ;
+        this.speed = speed ;
+        this.random = new Random(seed) ;
+        this.listener = listener ;
+        this.parallel = parallel ;
+        timeline = new ScrollTimeline(speed, chart.rate);
+        stolenFrom = new int[chart.laneCount()] ;
+        Arrays.fill(stolenFrom, Integer.MAX_VALUE) ;
+        this.features = chart.features(level) ;
+        this.goal = chart.goal(level) ;
+        played[NoteType.NORMAL.ordinal()] = true ;
+        played[NoteType.HOLD.ordinal()] = features.contains(Chart.Feature.HOLDS) ;
+        played[NoteType.BOMB.ordinal()] = features.contains(Chart.Feature.BOMBS) ;
+        played[NoteType.SPECIAL.ordinal()] = features.contains(Chart.Feature.SPECIALS) ;
+        int[] lanes = new int[chart.laneCount()] ;
+        int drawn = 0 ;
+        for (int i = 0; i < lanes.length; ++i)
+            if ( played[NoteType.SPECIAL.ordinal()] || !chart.laneName(i).equals("Special") ) lanes[drawn++] = i ;
+        drawnLanes = Arrays.copyOf(lanes, drawn) ;
+        hasEnemies = features.contains(Chart.Feature.ENEMIES) ;
+        hasHolds = played[NoteType.HOLD.ordinal()] ;
+        hasBombs = played[NoteType.BOMB.ordinal()] ;
+        hasSpecials = played[NoteType.SPECIAL.ordinal()] ;
+    }
+    /**
+     * Records every input the simulation receives from now on.
+     * @param replay The replay to record into.
+     */
+    public void recordTo(Replay replay)
+    {
+        this.replay = replay ;
+    }
+    /**
+     * Sets the input latency judgment makes up for.
+     * @param micros The latency in microseconds, positive when input arrives late; clamped to {@link Calibration#MAX_OFFSET_MICROS}.
+     */
+    public void setInputOffset(int micros)
+    {
+        inputOffset = Calibration.clamp(micros) * FRAME_RATE / 1e6 ;
+        updateHitLine() ;
+    }
+    /**
+     * Moves the hit line by the distance notes travel during the input latency at the current speed and play rate.
+     */
+    private void updateHitLine()
+    {
+        hitLine = HIT_LINE + (int) Math.round(speed * chart.rate * inputOffset) ;
+    }
+    /**
+     * @return The current frame of the chart.
+     */
+    public int frame()
+    {
+        return frameCount ;
+    }
+    /**
+     * @return The outcome so far.
+     */
+    public State state()
+    {
+        return state ;
+    }
+    /**
+     * @return The level the chart is played at.
+     */
+    public int level()
+    {
+        return gameLevel ;
+    }
+    /**
+     * @return The current score.
+     */
+    public int currentScore()
+    {
+        return score.currentScore ;
+    }
+    /**
+     * @return The timing-accuracy analytics of the level.
+     */
+    public TimingStats timing()
+    {
+        return score.timing ;
+    }
+    /**
+     * @return The asset id of every image the level can draw.
+     */
+    public Set<Integer> images()
+    {
+        Set<Integer> images = new LinkedHashSet<>();
+        for (int lane : drawnLanes)
+            images.add(chart.laneImage(lane));
+        for (int i = 0; i < chart.noteCount(); ++i)
+            if ( played[chart.type(i).ordinal()] ) images.add(chart.image(i));
+        if ( features.contains(Chart.Feature.ENEMIES) )
+        {
+            images.add(ENEMY_IMAGE);
+            images.add(GUARDIAN_IMAGE);
+            images.add(ARROW_IMAGE);
+        }
+        return images ;
+    }
+    /**
+     * Publishes a gameplay event for the current frame to the listener.
+     * @param type The event type.
+     * @param lane The lane id of the event.
+     * @param a The first event field.
+     * @param b The second event field.
+     */
+    private void logEvent(short type, int lane, int a, int b)
+    {
+        listener.event(frameCount, type, lane, a, b);
+        GameEvents.gameplay(frameCount, type, lane, a, b);
+    }
+    /**
+     * The slowest scroll speed, so that notes always reach the bottom edge and the song always ends.
+     */
+    private final static int MIN_SPEED = 1 ;
+    /**
+     * Updates the scroll speed by the specified amount, never below {@link #MIN_SPEED}.
+     * @param change The change in speed to be applied.
+     */
+    private void updateSpeed(Integer change)
+    {
+        int updated = Math.max(MIN_SPEED, speed + change) ;
+        if ( updated == speed ) return ;
+        change = updated - speed ;
+        speed = updated ;
+        timeline.changeSpeed(frameCount, speed);
+        updateHitLine() ;
+        logEvent(EventLog.SPEED_CHANGE, 0, speed, change);
+    }
+
+    /**
+     * The Score class manages the game score and the messages for scoring.
+     * It handles updating the player's score, game's messages, and game state based on player performance.
+     */
+    private class Score
+    {
+        private Score(){}
+
+        /**
+         * The timing-accuracy analytics of the current session.
+         */
+        private final TimingStats timing = new TimingStats();
+
+        /**
+         * The current score of the player.
+         * The current message to be displayed (e.g., "PERFECT", "GOOD", "BAD", "MISS").
+         * The frame count for displaying the current message.
+         * The frame count for handling 2x score change.
+         * The multiplier for score change.
+         */
+        private Integer currentScore = 0;
+        private String currentMsg = "" ;
+        private Integer frameMsgCount = 0;
+        private Integer frame2xCount = 0 ;
+        private Integer XscoreChange = 1 ;
+
+        /**
+         * Updates the score change multiplier by the specified amount, logging it only if it changes.
+         * @param change The change in the score change multiplier.
+         */
+        private void updateScoreChange(Integer change)
+        {
+            frame2xCount = 0 ;
+            if ( XscoreChange.equals(change) ) return ;
+            XscoreChange = change ;
+            logEvent(EventLog.DOUBLE_SCORE, 0, change, 0);
+        }
+        /**
+         * Updates the current message to be displayed.
+         * @param msg The new message to be displayed.
+         */
+        private void updateCurrentMsg(String msg)
+        {
+            currentMsg = msg ;
+            frameMsgCount = 0 ;
+            if ( !msg.isEmpty() ) logEvent(EventLog.MESSAGE, 0, EventLog.messageId(msg), 0);
+        }
+        /**
+         * increase the score.
+         * @param change The change in the score change multiplier.
+         */
+        private void updateScore(Integer score)
+        {
+            currentScore += score ;
+        }
+        /**
+         * Updates the player's score based on the given distance and returns the corresponding message.
+         * @param distance The distance of the player's performance.
+         * @return The message indicating the player's performance ("PERFECT", "GOOD", "BAD", "MISS").
+         */
+        private String callScore(double distance)
+        {
+            String message = "";
+            Integer scoreChange = 0 ;
+            if (distance <= 0)
+            {
+                scoreChange = 0;
+                message = "";
+            }
+            else if (distance <= 15)
+            {
+                scoreChange = 10;
+                message = "PERFECT";
+            }
+            else if (distance <= 50)
+            {
+                scoreChange = 5;
+                message = "GOOD";
+            }
+            else if (distance <= 100)
+            {
+                scoreChange = -1;
+                message = "BAD";
+            }
+            else if (distance <= 200)
+            {
+                scoreChange = -5;
+                message = "MISS";
+            }
+            else
+            {
+                scoreChange = -5;
+                message = "MISS";
+            }
+            currentScore = currentScore + scoreChange * XscoreChange ;
+            logEvent(EventLog.JUDGMENT, 0, Float.floatToRawIntBits((float) distance), scoreChange * XscoreChange);
+            if ( currentScore >= goal )
+                    state = State.WIN;
+
+            currentMsg = message ;
+            frameMsgCount = 0 ;
+
+            return message ;
+        }
+        /**
+         * Records the timing error of a judged note in the session analytics and the event log.
+         * @param note The judged note.
+         * @param error The signed distance from the hit line, negative when early.
+         * @param distance The distance the judgment was scored with.
+         */
+        private void recordTiming(Note note, double error, double distance)
+        {
+            int lane = EventLog.laneId(note.laneName) ;
+            timing.record(lane, note.NoteType.ordinal(), note.frame, error, distance);
+            listener.hit(note.NoteType);
+            logEvent(EventLog.TIMING, lane | note.NoteType.ordinal() << 8, Float.floatToRawIntBits((float) error), note.frame);
+        }
+        /**
+         * Records a note that was missed in the session analytics and the event log.
+         * @param note The missed note.
+         */
+        private void recordMiss(Note note)
+        {
+            int lane = EventLog.laneId(note.laneName) ;
+            timing.recordMiss(lane, note.NoteType.ordinal());
+            logEvent(EventLog.TIMING, lane | note.NoteType.ordinal() << 8, Float.floatToRawIntBits(Float.NaN), note.frame);
+        }
+        /**
+         * Updates the frame counts for handling score change multipliers and displaying messages.
+         */
+        private void updateFrame()
+        {
+            ++frameMsgCount ;
+            ++frame2xCount;
+            if ( frameMsgCount > 30 )
+            {
+                updateCurrentMsg("");
+            }
+            if ( frame2xCount == 480 )
+            {
+                updateScoreChange(1) ;
+            }
+        }
+    }
+
+    /**
+     * The game lane where the notes appear.
+     * The notes that have spawned and are still on screen, one list per note type, each in chart order.
+     * The position in the chart's spawn order of the next note to spawn.
+     * For every lane, the first frame an enemy stood on its spawn point, stealing every normal note that had not moved yet.
+     * The guardian object controlled by the player.
+     * The list of enemies in the game (only updated when the level has enemies).
+     * The list of arrows in the game (only updated when the level has enemies).
+     * The scroll position of the notes over time.
+     */
+    private Lane lane = new Lane() ;
+    private final List<NormalNote> normals = new ArrayList<>();
+    private final List<HoldNote> holds = new ArrayList<>();
+    private final List<BombNote> bombs = new ArrayList<>();
+    private final List<SpecialNote> specials = new ArrayList<>();
+    private int nextSpawn = 0 ;
+    private final int[] stolenFrom ;
+    private Guardian guardian = new Guardian();
+    private List<Enemy> enemies = new ArrayList<>();
+    private List<Arrow> arrows = new ArrayList<>();
+    private final ScrollTimeline timeline ;
+
+    /**
+     * The asset ids of the enemy, guardian and arrow images.
+     */
+    private final int ENEMY_IMAGE = AssetManifest.get().id(AssetManifest.Kind.SPRITE, "enemy") ;
+    private final int GUARDIAN_IMAGE = AssetManifest.get().id(AssetManifest.Kind.SPRITE, "guardian") ;
+    private final int ARROW_IMAGE = AssetManifest.get().id(AssetManifest.Kind.SPRITE, "arrow") ;
+
+    /**
+     * Whether the data-parallel update passes may fork onto the pool.
+     * The minimum number of entities before a pass is split across threads.
+     * The pool running the data-parallel passes.
+     */
+    private final boolean parallel ;
+    private final static int PARALLEL_THRESHOLD = 256;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Runs the body once for every index in [0, n), splitting the range across the pool when
+     * parallel mode is on and the range is large enough. Bodies must only write to their own index.
+     * @param n The number of indices.
+     * @param body The work to run for a single index.
+     */
+    private void forEachIndex(int n, IntConsumer body)
+    {
+        if ( !parallel || n < PARALLEL_THRESHOLD )
+        {
+            for (int i = 0; i < n; ++i) body.accept(i);
+            return ;
+        }
+        pool.invoke(new RangeTask(0, n, body));
+    }
+    /**
+     * Updates the notes for a new frame: advances the score timers, judges player input and
+     * checks whether the song is over, which is once the last note has reached the bottom edge and been judged.
+     * @param keys The keys pressed and released by the player.
+     */
+    private void UpdateNote(KeyEdges keys)
+    {
+        score.updateFrame() ;
+        JudgeNote(keys) ;
+        int last = chart.noteCount() - 1 ;
+        if (last >= 0 && chart.y(last) + timeline.distance(chart.frame(last), frameCount) >  WINDOW_HEIGHT - 1)
+        {
+            state = State.LOSE;
+        }
+    }
+    /**
+     * Adds the notes whose spawn frame has come to the notes on screen, keeping chart order.
+     * Notes of a type the level does not play never spawn.
+     * A normal note spawns already stolen if an enemy stood on its lane's spawn point since it was due.
+     */
+    private void SpawnNote()
+    {
+        while ( nextSpawn < chart.noteCount() && chart.frame(chart.spawnOrder(nextSpawn)) <= frameCount )
+        {
+            int index = chart.spawnOrder(nextSpawn++) ;
+            NoteType type = chart.type(index) ;
+            if ( !played[type.ordinal()] ) continue ;
+            switch (type)
+            {
+            case HOLD: insert(holds, new HoldNote(index)) ; break ;
+            case NORMAL:
+                NormalNote note = new NormalNote(index) ;
+                if ( chart.frame(index) >= stolenFrom[chart.lane(index)] ) note.isAlive = false ;
+                insert(normals, note) ;
+                break ;
+            case BOMB: insert(bombs, new BombNote(index)) ; break ;
+            default: insert(specials, new SpecialNote(index)) ; break ;
+            }
+            GameEvents.spawn(frameCount, index, chart.laneName(chart.lane(index)), type) ;
+        }
+    }
+    /**
+     * Inserts a note that has spawned into the list of its type, keeping chart order.
+     * @param notes The notes of the type.
+     * @param note The note.
+     */
+    private <T extends Note> void insert(List<T> notes, T note)
+    {
+        int index = ((Note) note).index ;
+        int at = notes.size() ;
+        while ( at > 0 && ((Note) notes.get(at - 1)).index > index ) --at ;
+        notes.add(at, note) ;
+    }
+    /**
+     * Judges player input against the active notes.
+     * On a frame without input only normal and hold notes can change, by being missed, and each type is
+     * judged in its own pass. A frame with input keeps chart order across the types instead: a bomb clears
+     * its lane before the notes after it are judged, a special note changes the multiplier and the speed
+     * the notes after it are scored with, and the message shown is that of the last note hit, so judging
+     * type by type would change the score. Notes are spawned by the frame step and are not moved here:
+     * their position follows from the scroll timeline.
+     * @param keys The keys pressed and released by the player.
+     */
+    private void JudgeNote(KeyEdges keys)
+    {
+        if ( keys.isEmpty() )
+        {
+            for (int i = 0; i < normals.size(); ++i)
+                if ( normals.get(i).isInPlay() ) normals.get(i).Update(keys) ;
+            for (int i = 0; i < holds.size(); ++i)
+                if ( holds.get(i).isInPlay() ) holds.get(i).Update(keys) ;
+        }
+        else JudgeInOrder(keys) ;
+        retire(normals) ;
+        retire(holds) ;
+        retire(bombs) ;
+        retire(specials) ;
+    }
+    /**
+     * Judges input against the notes of every type in chart order, taking the note with the lowest chart
+     * index from the heads of the four lists each time.
+     * @param keys The keys pressed and released by the player.
+     */
+    private void JudgeInOrder(KeyEdges keys)
+    {
+        int n = 0, h = 0, b = 0, s = 0 ;
+        int normal = indexAt(normals, 0), hold = indexAt(holds, 0), bomb = indexAt(bombs, 0), special = indexAt(specials, 0) ;
+        while ( true )
+        {
+            if ( normal < hold && normal < bomb && normal < special )
+            {
+                NormalNote note = normals.get(n) ;
+                if ( note.isInPlay() ) note.Update(keys) ;
+                normal = indexAt(normals, ++n) ;
+            }
+            else if ( hold < bomb && hold < special )
+            {
+                HoldNote note = holds.get(h) ;
+                if ( note.isInPlay() ) note.Update(keys) ;
+                hold = indexAt(holds, ++h) ;
+            }
+            else if ( bomb < special )
+            {
+                BombNote note = bombs.get(b) ;
+                if ( note.isInPlay() ) note.Update(keys) ;
+                bomb = indexAt(bombs, ++b) ;
+            }
+            else if ( special != Integer.MAX_VALUE )
+            {
+                SpecialNote note = specials.get(s) ;
+                if ( note.isInPlay() ) note.Update(keys) ;
+                special = indexAt(specials, ++s) ;
+            }
+            else return ;
+        }
+    }
+    /**
+     * @param notes The notes of a type.
+     * @param at A position in the list.
+     * @return The chart index of the note at the position, or {@link Integer#MAX_VALUE} past the end.
+     */
+    private int indexAt(List<? extends Note> notes, int at)
+    {
+        return at < notes.size() ? ((Note) notes.get(at)).index : Integer.MAX_VALUE ;
+    }
+    /**
+     * Drops the notes of a type that have left the screen or were cleared, keeping the others in order.
+     * @param notes The notes of the type.
+     */
+    private <T extends Note> void retire(List<T> notes)
+    {
+        int kept = 0 ;
+        for (int i = 0; i < notes.size(); ++i)
+        {
+            T note = notes.get(i) ;
+            Note state = note ;
+            if ( state.currentY() <= WINDOW_HEIGHT && !state.isCleared ) notes.set(kept++, note) ;
+            else GameEvents.retire(frameCount, state.index, state.laneName, state.NoteType, state.isCleared) ;
+        }
+        while ( notes.size() > kept ) notes.remove(notes.size() - 1) ;
+    }
+    /**
+     * Advances the game logic to the next frame.
+     * @param keys The keys pressed and released by the player during the frame.
+     */
+    public void step(KeyEdges keys)
+    {
+        ++frameCount ;
+        if ( replay != null && !keys.isEmpty() ) replay.input(frameCount, Replay.STEP, keys) ;
+        GameEvents.FramePhase event = GameEvents.phase() ;
+        SpawnNote() ;
+        GameEvents.endPhase(event, GameEvents.UPDATE, "spawn", frameCount) ;
+        if ( hasEnemies )
+        {
+            event = GameEvents.phase() ;
+            UpdateEnemy() ;
+            GameEvents.endPhase(event, GameEvents.UPDATE, "enemy", frameCount) ;
+        }
+        event = GameEvents.phase() ;
+        UpdateNote(keys) ;
+        GameEvents.endPhase(event, GameEvents.UPDATE, "note", frameCount) ;
+        if ( hasEnemies )
+        {
+            event = GameEvents.phase() ;
+            guardian.Update(keys) ;
+            GameEvents.endPhase(event, GameEvents.UPDATE, "guardian", frameCount) ;
+            event = GameEvents.phase() ;
+            UpdateArrow() ;
+            GameEvents.endPhase(event, GameEvents.UPDATE, "arrow", frameCount) ;
+        }
+    }
+    /**
+     * Judges input that arrives in the middle of a frame, without advancing the frame.
+     * @param keys The keys pressed and released by the player.
+     */
+    public void judge(KeyEdges keys)
+    {
+        if ( replay != null && !keys.isEmpty() ) replay.input(frameCount, Replay.JUDGE, keys) ;
+        JudgeNote(keys) ;
+        if ( hasEnemies ) guardian.Update(keys) ;
+    }
+    /**
+     * Records the current game state into a frame for the render thread. Only reads the game state.
+     * @param frame The frame to record into.
+     */
+    public void record(RenderBuffer frame)
+    {
+        frame.clear() ;
+        frame.score = score.currentScore ;
+        frame.msg = score.currentMsg ;
+        frame.frame = frameCount ;
+        frame.multiplier = score.XscoreChange ;
+        frame.speed = speed ;
+        GameEvents.FramePhase event = GameEvents.phase() ;
+        lane.Draw(frame) ;
+        GameEvents.endPhase(event, GameEvents.RECORD, "lane", frameCount) ;
+        if ( hasEnemies )
+        {
+            event = GameEvents.phase() ;
+            DrawEnemy(frame) ;
+            GameEvents.endPhase(event, GameEvents.RECORD, "enemy", frameCount) ;
+        }
+        if ( hasHolds )
+        {
+            event = GameEvents.phase() ;
+            DrawHold(frame) ;
+            GameEvents.endPhase(event, GameEvents.RECORD, "hold", frameCount) ;
+        }
+        event = GameEvents.phase() ;
+        DrawNormal(frame) ;
+        GameEvents.endPhase(event, GameEvents.RECORD, "normal", frameCount) ;
+        if ( hasBombs )
+        {
+            event = GameEvents.phase() ;
+            DrawBomb(frame) ;
+            GameEvents.endPhase(event, GameEvents.RECORD, "bomb", frameCount) ;
+        }
+        if ( hasSpecials )
+        {
+            event = GameEvents.phase() ;
+            DrawSpecial(frame) ;
+            GameEvents.endPhase(event, GameEvents.RECORD, "special", frameCount) ;
+        }
+        if ( hasEnemies )
+        {
+            event = GameEvents.phase() ;
+            guardian.Draw(frame) ;
+            GameEvents.endPhase(event, GameEvents.RECORD, "guardian", frameCount) ;
+            event = GameEvents.phase() ;
+            DrawArrow(frame) ;
+            GameEvents.endPhase(event, GameEvents.RECORD, "arrow", frameCount) ;
+        }
+    }
+    /**
+     * Jumps to an arbitrary position in the song. Note positions follow from the scroll timeline,
+     * so nothing has to be simulated; speed changes after the target frame are forgotten.
+     * The notes due by then are spawned again, and those already off screen dropped.
+     * @param frame The frame to jump to.
+     */
+    public void seek(int frame)
+    {
+        frameCount = frame ;
+        timeline.truncate(frame);
+        speed = timeline.currentSpeed() ;
+        updateHitLine() ;
+        normals.clear() ;
+        holds.clear() ;
+        bombs.clear() ;
+        specials.clear() ;
+        nextSpawn = 0 ;
+        SpawnNote() ;
+        normals.removeIf(note -> note.currentY() > WINDOW_HEIGHT) ;
+        holds.removeIf(note -> note.currentY() > WINDOW_HEIGHT) ;
+        bombs.removeIf(note -> note.currentY() > WINDOW_HEIGHT) ;
+        specials.removeIf(note -> note.currentY() > WINDOW_HEIGHT) ;
+    }
+    /**
+     * Updates the enemies: spawns, moves every enemy, then lets them steal normal notes.
+     * Stealing only ever marks a note dead, so a note reached by several enemies ends up in the
+     * same state whichever enemy is checked first. Notes that have not spawned yet are stolen per lane.
+     */
+    private void UpdateEnemy()
+    {
+        if ( frameCount % 600 == 0)
+        {
+            Enemy enemy = new Enemy();
+            enemies.add(enemy);
+            logEvent(EventLog.ENEMY_SPAWN, 0, enemy.X, enemy.Y);
+        }
+        forEachIndex(enemies.size(), i -> enemies.get(i).Move());
+        forEachIndex(normals.size(), i -> {
+            NormalNote note = normals.get(i);
+            for (Enemy enemy : enemies)
+                if ( enemy.stealNote(note) ) break ;
+        });
+        for (int i = 0; i < stolenFrom.length; ++i)
+            if ( stolenFrom[i] == Integer.MAX_VALUE )
+                for (Enemy enemy : enemies)
+                    if ( enemy.reachesSpawn(chart.laneName(i)) )
+                    {
+                        stolenFrom[i] = frameCount + 1 ;
+                        break ;
+                    }
+    }
+    /**
+     * Updates the arrows: moves every arrow and finds its first colliding enemy in parallel, then
+     * resolves the hits in arrow order so that an enemy hit by several arrows is always taken by the
+     * earliest one, exactly as in single-threaded mode.
+     */
+    private void UpdateArrow()
+    {
+        forEachIndex(arrows.size(), i -> arrows.get(i).Move(enemies));
+        for (Arrow arrow : arrows)
+            {
+                arrow.Resolve(enemies) ;
+            }
+    }
+    /**
+     * Draws the hold notes on the game screen. Each note type is drawn in its own pass, hold notes below the others.
+     * @param frame The frame to record into.
+     */
+    private void DrawHold(RenderBuffer frame)
+    {
+        for (int i = 0; i < holds.size(); ++i)
+            if ( holds.get(i).isShown() ) holds.get(i).Draw(frame) ;
+    }
+    /**
+     * Draws the normal notes on the game screen.
+     * @param frame The frame to record into.
+     */
+    private void DrawNormal(RenderBuffer frame)
+    {
+        for (int i = 0; i < normals.size(); ++i)
+            if ( normals.get(i).isShown() ) normals.get(i).Draw(frame) ;
+    }
+    /**
+     * Draws the bomb notes on the game screen.
+     * @param frame The frame to record into.
+     */
+    private void DrawBomb(RenderBuffer frame)
+    {
+        for (int i = 0; i < bombs.size(); ++i)
+            if ( bombs.get(i).isShown() ) bombs.get(i).Draw(frame) ;
+    }
+    /**
+     * Draws the special notes on the game screen.
+     * @param frame The frame to record into.
+     */
+    private void DrawSpecial(RenderBuffer frame)
+    {
+        for (int i = 0; i < specials.size(); ++i)
+            if ( specials.get(i).isShown() ) specials.get(i).Draw(frame) ;
+    }
+    /**
+     * Draws the enemies on the game screen.
+     * @param frame The frame to record into.
+     */
+    private void DrawEnemy(RenderBuffer frame)
+    {
+        for (Enemy enemy : enemies)
+            {
+                enemy.Draw(frame) ;
+            }
+    }
+    /**
+     * Draws the arrows on the game screen.
+     * @param frame The frame to record into.
+     */
+    private void DrawArrow(RenderBuffer frame)
+    {
+        for (Arrow arrow : arrows)
+            {
+                arrow.Draw(frame) ;
+            }
+    }
+    /**
+     * A fork/join task splitting an index range in halves until it is small enough to run directly.
+     */
+    private class RangeTask extends RecursiveAction
+    {
+        private final static long serialVersionUID = 1L ;
+        private final int from ;
+        private final int to ;
+        private final IntConsumer body ;
+        private RangeTask(int from, int to, IntConsumer body)
+        {
+            this.from = from ;
+            this.to = to ;
+            this.body = body ;
+        }
+        @Override
+        protected void compute()
+        {
+            if ( to - from <= PARALLEL_THRESHOLD )
+            {
+                for (int i = from; i < to; ++i) body.accept(i);
+                return ;
+            }
+            int mid = (from + to) >>> 1 ;
+            invokeAll(new RangeTask(from, mid, body), new RangeTask(mid, to, body));
+        }
+    }
+    /**
+     * The Objects class represents the base class for game objects.
+     * It contains methods for calculating distances between points in the game space.
+     */
+    public class Objects
+    {
+        /**
+         * The X-coordinate of the object in the game space.
+         * The Y-coordinate of the object in the game space.
+         */
+        protected Integer X = 0 ;
+        protected Integer Y = 24;
+        /**
+         * Calculates the distance between two points (x1, y1) and (x2, y2) using the Euclidean distance formula.
+         * @param x1 The x-coordinate of the first point.
+         * @param y1 The y-coordinate of the first point.
+         * @param x2 The x-coordinate of the second point.
+         * @param y2 The y-coordinate of the second point.
+         * @return The distance between the two points.
+         */
+        protected double Calculate(Integer x1 , Integer y1, Integer x2, Integer y2)
+        {
+            double dodaiAB = Math.sqrt(Math.pow((x1 - x2), 2) + Math.pow((y1-y2), 2));
+            return dodaiAB ;
+        }
+    }
+    /**
+     * The Lane class represents the game lanes where notes and objects move.
+     * It extends the Objects class and manages lane positions and drawing on the game screen.
+     */
+    private class Lane extends Objects
+    {
+        private Lane(){}
+        /**
+         * Draws the lanes on the game screen based on their positions.
+         * @param frame The frame to record into.
+         */
+        public void Draw(RenderBuffer frame)
+        {
+            for (int i : drawnLanes)
+            {
+                frame.sprite(chart.laneImage(i), chart.laneX(i), 384);
+            }
+        }
+        /**
+         * Retrieves the X-coordinate of a specific lane.
+         * @param laneName The name of the lane.
+         * @return The X-coordinate of the specified lane.
+         */
+        public Integer getX(String laneName)
+        {
+            return chart.laneX().get(laneName);
+        }
+    }
+    /**
+     * The Note class represents different types of notes in the game.
+     * It is an abstract class that extends the Objects class and defines common properties and methods for all note types.
+     */
+    abstract class Note extends Objects
+    {
+        /**
+         * The index of the note in the chart.
+         * The frame at which the note appears in the game.
+         * The type of the note (NORMAL, HOLD, SPECIAL, BOMB).
+         * The lane name of the note.
+         * A flag indicating whether the note is cleared.
+         * The asset id of the image the note is drawn with.
+         */
+        private final int index ;
+        private Integer frame = 0;
+        private NoteType NoteType ;
+        public String laneName = "";
+        private boolean isCleared = false ;
+        protected int image = 0 ;
+        /**
+         * Creates the state of a chart note that has spawned, taking its type, frame, lane and position from the chart.
+         * @param index The index of the note in the chart.
+         */
+        public Note(int index)
+        {
+            this.index = index ;
+            this.NoteType = chart.type(index);
+            this.frame = chart.frame(index);
+            this.laneName = chart.laneName(chart.lane(index)) ;
+            this.X = chart.x(index) ;
+            this.Y = chart.y(index) ;
+            this.image = chart.image(index) ;
+        }
+        /**
+         * Returns the Y-coordinate of the note at a given frame. The note's own Y-coordinate is where it spawns;
+         * from then on it has moved by the distance the scroll timeline travelled since its spawn frame.
+         * @param frame The frame to get the position at.
+         * @return The Y-coordinate of the note.
+         */
+        public int yAt(int frame)
+        {
+            return Y + timeline.distance(this.frame, frame);
+        }
+        /**
+         * Returns the Y-coordinate of the note during the current frame's update.
+         * @return The Y-coordinate of the note.
+         */
+        public int currentY()
+        {
+            return yAt(frameCount);
+        }
+        /**
+         * Returns the Y-coordinate the note is drawn at, after the current frame's movement.
+         * @return The Y-coordinate of the note.
+         */
+        public int drawY()
+        {
+            return yAt(frameCount + 1);
+        }
+        /**
+         * @return True if the note is judged in the current frame's update: it is due, not cleared and on screen,
+         *         or it crossed the bottom edge in this frame. Notes move several pixels per frame (more at a
+         *         play rate), so the crossing frame is where an unscored note is missed.
+         */
+        public boolean isInPlay()
+        {
+            return frameCount >= frame && ( currentY() <= WINDOW_HEIGHT || yAt(frameCount - 1) <= WINDOW_HEIGHT - 1 ) && !isCleared ;
+        }
+        /**
+         * @return True if the note is drawn in the current frame: it is due, on screen after moving and not cleared.
+         */
+        public boolean isShown()
+        {
+            return frameCount >= frame && drawY() <= WINDOW_HEIGHT && !isCleared ;
+        }
+        /**
+         * Handles player input for the note.
+         * @param input The keys pressed and released by the player.
+         */
+        abstract void Update(KeyEdges input) ;
+        /**
+         * Draws the note on the game screen.
+         * @param frame The frame to record into.
+         */
+        abstract void Draw(RenderBuffer frame) ;
+        /**
+         * Checks if the specified action (e.g., Down, Up, Right, Left, Special) is triggered by player input.
+         * @param input The keys pressed and released by the player.
+         * @param str The specific action to check (Down, Up, Right, Left, Special).
+         * @return True if the action is triggered, false otherwise.
+         */
+        public boolean actionUp(KeyEdges input,String str)
+        {
+            if (input.wasReleased(Keys.DOWN) && str.equals("Down"))
+            {
+                return true ;
+            }
+            else if (input.wasReleased(Keys.UP)&& str.equals("Up"))
+            {
+                return true ;
+            }
+            else if(input.wasReleased(Keys.RIGHT)&& str.equals("Right"))
+            {
+                return true ;
+            }
+            else if(input.wasReleased(Keys.LEFT)&& str.equals("Left"))
+            {
+                return true ;
+            }
+            else if(input.wasReleased(Keys.SPACE)&& str.equals("Special"))
+            {
+                return true ;
+            }
+            return false ;
+        }
+        /**
+         * Checks if the specified action (e.g., Down, Up, Right, Left, Special) is initiated by player input.
+         * @param input The keys pressed and released by the player.
+         * @param str The specific action to check (Down, Up, Right, Left, Special).
+         * @return True if the action is initiated, false otherwise.
+         */
+        public boolean actionDown(KeyEdges input, String str)
+        {
+            if (input.wasPressed(Keys.DOWN) && str.equals("Down"))
+            {
+                return true ;
+            }
+            else if (input.wasPressed(Keys.UP)&& str.equals("Up"))
+            {
+                return true ;
+            }
+            else if(input.wasPressed(Keys.RIGHT)&& str.equals("Right"))
+            {
+                return true ;
+            }
+            else if(input.wasPressed(Keys.LEFT)&& str.equals("Left"))
+            {
+                return true ;
+            }
+            else if(input.wasPressed(Keys.SPACE)&& str.equals("Special"))
+            {
+                return true ;
+            }
+            return false ;
+        }
+    }
+    /**
+     * The NormalNote class represents normal notes in the game.
+     * It extends the Note class and handles the drawing and scoring logic for normal notes.
+     */
+    private final class NormalNote extends Note
+    {
+        /**
+         * Creates a new normal note.
+         * @param index The index of the note in the chart.
+         */
+        public NormalNote(int index)
+        {
+            super(index);
+        }
+        /**
+         * A flag indicating whether the normal note is alive and active.
+         * A flag indicating whether the normal note is scored.
+         */
+        private boolean isAlive = true ;
+        private boolean isScored = false ;
+
+        /**
+         * Handles player input for scoring the normal note.
+         * @param input The keys pressed and released by the player.
+         */
+        @Override
+        public void Update(KeyEdges input)
+        {
+            if ( !this.isAlive) return ;
+            int Y = currentY() ;
+            boolean nhan = actionDown(input,laneName) ;
+            String msg = "";
+            if ( nhan == true)
+            {
+                double dis = Calculate(X,Y,lane.getX(laneName),hitLine) ;
+                msg = score.callScore(dis);
+                score.updateCurrentMsg(msg);
+                score.recordTiming(this, Y - hitLine, dis);
+                isScored = true ;
+            }
+            if ( !isScored && Y > WINDOW_HEIGHT-1)
+            {
+                msg = score.callScore(300);
+                score.updateCurrentMsg(msg);
+                score.recordMiss(this);
+                isScored = true ;
+            }
+        }
+        /**
+         * Draws the normal note on the game screen.
+         * @param frame The frame to record into.
+         */
+        @Override
+        public void Draw(RenderBuffer frame)
+        {
+            if ( !this.isAlive) return ;
+            frame.sprite(image, this.X, drawY());
+        }
+    }
+    /**
+     * The HoldNote class represents hold notes in the game.
+     * It extends the Note class and handles the drawing and scoring logic for hold notes.
+     */
+    private final class HoldNote extends Note
+    {
+        /**
+         * Creates a new hold note.
+         * @param index The index of the note in the chart.
+         */
+        public HoldNote(int index)
+        {
+            super(index);
+        }
+        /**
+         * A flag indicating whether the hold note is alive and active.
+         * The distance pressed by the player on the hold note.
+         * The distance released by the player on the hold note.
+         * The signed distance of the hold note's head from the hit line when pressed.
+         * A flag indicating whether the hold note was pressed before it is released.
+         * A flag indicating whether the hold note is scored.
+         */
+        private boolean isAlive = true ;
+        private double dPressed = 0 ;
+        private double ePressed = 0 ;
+        private boolean isPressed = false ;
+        private double dReleased = 0 ;
+        private boolean isScored = false ;
+        /**
+         * Handles player input for scoring the hold note.
+         * @param input The keys pressed and released by the player.
+         */
+        @Override
+        public void Update(KeyEdges input)
+        {
+            if ( !this.isAlive) return ;
+            int Y = currentY() ;
+            boolean nhan = false , tha = false;
+            String msg = "";
+
+            nhan = actionDown(input,laneName) ;
+            tha = actionUp(input,laneName) ;
+
+            if ( nhan == true )
+            {
+                dPressed = Calculate(X,Y+82,lane.getX(laneName),hitLine) ;
+                ePressed = Y + 82 - hitLine ;
+                isPressed = true ;
+            }
+            if ( tha == true)
+            {
+                dReleased = Calculate(X,Y-82,lane.getX(laneName),hitLine) ;
+                double dis = Math.abs(dPressed-dReleased);
+                msg = score.callScore(dis);
+                score.updateCurrentMsg(msg);
+                if ( isPressed ) score.recordTiming(this, ePressed, dis);
+                else score.recordMiss(this);
+                isScored = true ;
+                isPressed = false ;
+                dPressed = dReleased = 0 ;
+            }
+
+            if ( !isScored && Y-82 > WINDOW_HEIGHT-1-82)
+            {
+                msg = score.callScore(300);
+                score.updateCurrentMsg(msg);
+                score.recordMiss(this);
+                isScored = true ;
+            }
+        }
+        /**
+         * Draws the hold note on the game screen.
+         * @param frame The frame to record into.
+         */
+        @Override
+        public void Draw(RenderBuffer frame)
+        {
+            if ( !this.isAlive) return ;
+            frame.sprite(image, this.X, drawY());
+        }
+    }
+    /**
+     * The BombNote class represents bomb notes in the game.
+     * It extends the Note class and handles the drawing and interaction logic for bomb notes.
+     */
+    private final class BombNote extends Note
+    {
+        /**
+         * Creates a new bomb note.
+         * @param index The index of the note in the chart.
+         */
+        public BombNote(int index)
+        {
+            super(index);
+        }
+        /**
+         * A flag indicating whether the bomb note is active.
+         */
+        private boolean isActive = false ;
+        /**
+         * Clears all notes in the specified list that share the same lane as the bomb note.
+         * @param notes The list of notes to clear.
+         */
+        private void clearNote( List<? extends Note> notes)
+        {
+            for(Note note : notes)
+            if (frameCount >= note.frame && note.currentY() <= WINDOW_HEIGHT && note.laneName.equals(this.laneName) )
+            {
+                note.isCleared = true ;
+            }
+        }
+        /**
+         * Handles player input for the bomb note.
+         * @param input The keys pressed and released by the player.
+         */
+        @Override
+        public void Update(KeyEdges input)
+        {
+            if ( this.isActive) return ;
+            boolean nhan = actionDown(input,laneName) ;
+            if ( nhan == true)
+            {
+                double dis = Calculate(X,currentY(),lane.getX(laneName),hitLine) ;
+                if ( dis <= 50 )
+                {
+                    isActive = true ;
+                    clearNote(normals) ;
+                    clearNote(holds) ;
+                    clearNote(bombs) ;
+                    clearNote(specials) ;
+                    listener.hit(NoteType.BOMB);
+                    logEvent(EventLog.LANE_CLEAR, EventLog.laneId(laneName), 0, 0);
+                    score.updateCurrentMsg("LANE CLEAR") ;
+                }
+            }
+        }
+        /**
+         * Draws the bomb note on the game screen.
+         * @param frame The frame to record into.
+         */
+        @Override
+        public void Draw(RenderBuffer frame)
+        {
+            if ( this.isActive) return ;
+            frame.sprite(image, this.X, drawY());
+        }
+    }
+    /**
+     * The SpecialNote class represents special notes in the game.
+     * It extends the Note class and handles the drawing and interaction logic for special notes.
+     */
+    private final class SpecialNote extends Note
+    {
+        /**
+         * Creates a new special note.
+         * @param index The index of the note in the chart.
+         */
+        public SpecialNote(int index)
+        {
+            super(index);
+            this.type = chart.special(index);
+        }
+         /**
+         * A flag indicating whether the special note is active.
+         * The type of the special note (SpeedUp, SlowDown, 2x).
+         */
+        private boolean isActive = false ;
+        private final String type ;
+        /**
+         * Handles player input for the special note.
+         * @param input The keys pressed and released by the player.
+         */
+        @Override
+        public void Update(KeyEdges input)
+        {
+            if ( this.isActive) return ;
+            boolean nhan = actionDown(input,"Special") ;
+            if ( nhan == true)
+            {
+                double dis = Calculate(X,currentY(),lane.getX("Special"),hitLine) ;
+                if ( dis <= 50 )
+                {
+                    isActive = true ;
+                    listener.hit(NoteType.SPECIAL);
+                    if ( type.equals("SpeedUp"))
+                    {
+                        score.updateCurrentMsg("SPEED UP") ;
+                        score.updateScore(15) ;
+                        updateSpeed(1);
+                    }
+                    else if ( type.equals("SlowDown"))
+                    {
+                        score.updateCurrentMsg("SLOW DOWN") ;
+                        score.updateScore(15) ;
+                        updateSpeed(-1);
+                    }
+                    else if ( type.equals("2x"))
+                    {
+                        score.updateCurrentMsg("DOUBLE SCORE") ;
+                        score.updateScoreChange(2);
+                    }
+                }
+            }
+        }
+        /**
+         * Draws the special note on the game screen.
+         * @param frame The frame to record into.
+         */
+        @Override
+        public void Draw(RenderBuffer frame)
+        {
+            if ( this.isActive) return ;
+            frame.sprite(image, this.X, drawY());
+        }
+    }
+    /**
+     * The Arrow class represents the arrows fired by the guardian to defeat enemies.
+     * It extends the Objects class and handles arrow movement, collision detection, and firing logic.
+     */
+    private class Arrow extends Objects
+    {
+        private Arrow()
+        {
+        }
+        /**
+         * The rotation angle of the projectile.
+         * The position of the projectile in the game space.
+         * A flag indicating whether the arrow is fired.
+         * A flag indicating whether the arrow moved in the current update.
+         * The index of the first enemy the arrow collided with in the current update, or -1.
+         */
+        private double projectileRotation = 0;
+        private Vector2 projectilePosition = new Vector2( 800,600);
+        private boolean isFire = false ;
+        private boolean isMoved = false ;
+        private int hitIndex = -1 ;
+
+        /**
+         * Sets the direction of the arrow based on the guardian's position and the nearest enemy.
+         * @param gu The guardian object.
+         * @param e The nearest enemy object.
+         */
+        private void SetDirect(Guardian gu, Enemy e)
+        {
+            Vector2 guardianPosition = new Vector2(gu.X, gu.Y);
+            Vector2 enemyPosition = new Vector2(e.X,e.Y);
+            Vector2 direction = enemyPosition.sub(guardianPosition);
+            projectileRotation = Math.atan2(direction.y, direction.x);
+        }
+        /**
+         * Checks if the arrow collides with a specific enemy.
+         * @param enemy The enemy object to check for collision.
+         * @return True if the arrow collides with the enemy, false otherwise.
+         */
+        private boolean checkIntersertion(Enemy enemy )
+        {
+            Vector2 enemyPosition = new Vector2(enemy.X,enemy.Y);
+            double dx = enemyPosition.x - projectilePosition.x;
+            double dy = enemyPosition.y - projectilePosition.y;
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance <= 62) return true ;
+            return false ;
+        }
+        /**
+         * Moves the arrow and records the first live enemy it collides with.
+         * Only reads the enemies, so every arrow can be moved in parallel.
+         * @param enemies The enemies to check for collision.
+         */
+        private void Move(List<Enemy> enemies)
+        {
+            isMoved = !this.isFire ;
+            hitIndex = -1 ;
+            if ( !isMoved ) return ;
+            double _speed = 6.0;
+            double dx = _speed * Math.cos(projectileRotation);
+            double dy = _speed * Math.sin(projectileRotation);
+            projectilePosition = new Vector2(projectilePosition.x + dx, projectilePosition.y + dy);
+            hitIndex = findHit(enemies, 0) ;
+        }
+        /**
+         * Finds the first enemy, starting from the given index, that is still alive and collides with the arrow.
+         * @param enemies The enemies to check for collision.
+         * @param from The index to start searching from.
+         * @return The index of the enemy hit, or -1 if there is none.
+         */
+        private int findHit(List<Enemy> enemies, int from)
+        {
+            for (int i = from; i < enemies.size(); ++i)
+                if ( !enemies.get(i).isFire && checkIntersertion(enemies.get(i)))
+                    return i ;
+            return -1 ;
+        }
+        /**
+         * Applies the collision found by {@link #Move(List)}. Must be called in arrow order: when an earlier
+         * arrow has already taken the enemy, the search continues with the following enemies.
+         * @param enemies The enemies to check for collision.
+         */
+        private void Resolve(List<Enemy> enemies)
+        {
+            if ( !isMoved ) return ;
+            int hit = hitIndex ;
+            if ( hit >= 0 && enemies.get(hit).isFire ) hit = findHit(enemies, hit + 1) ;
+            if ( hit >= 0 )
+            {
+                this.isFire = true ;
+                enemies.get(hit).isFire = true ;
+                logEvent(EventLog.ENEMY_KILL, 0, enemies.get(hit).X, enemies.get(hit).Y);
+            }
+            if (projectilePosition.x < 0 || projectilePosition.x > WINDOW_WIDTH-1 ||
+            projectilePosition.y < 0 || projectilePosition.y > WINDOW_HEIGHT-1)
+            {
+                this.isFire = true;
+            }
+        }
+        /**
+         * Draws the arrow on the game screen.
+         * @param frame The frame to record into.
+         */
+        public void Draw(RenderBuffer frame)
+        {
+            if ( !this.isFire )
+            {
+                frame.sprite(ARROW_IMAGE, this.projectilePosition.x, this.projectilePosition.y, projectileRotation);
+            }
+        }
+    }
+    /**
+     * The Guardian class represents the guardian character in the game.
+     * It extends the Objects class and manages the guardian's position, shooting logic, and interaction with enemies.
+     */
+    private class Guardian extends Objects
+    {
+        /**
+         * Creates a new guardian object with a specified initial position.
+         */
+        private Guardian()
+        {
+            X = 800 ;
+            Y = 600;
+        }
+        /**
+         * Finds the nearest enemy from a list of enemies.
+         * @param enemies The list of enemies to search for the nearest one.
+         * @return The nearest enemy object, or null if no enemies are nearby.
+         */
+        public Enemy findNearestEnemy(List<Enemy> enemies)
+        {
+            Enemy nearestEnemy = null;
+            double dis = 10000;
+            for (Enemy enemy : enemies)
+                if ( !enemy.isFire)
+                {
+                    double tmp_dis = Calculate(enemy.X, enemy.Y,this.X,this.Y) ;
+                    if ( tmp_dis < dis )
+                    {
+                        dis = tmp_dis ;
+                        nearestEnemy = enemy ;
+                    }
+                }
+            return nearestEnemy;
+        }
+        /**
+         * Handles the guardian's shooting logic.
+         * @param input The keys pressed and released by the player.
+         */
+        public void Update(KeyEdges input)
+        {
+            if (input.wasPressed(Keys.LEFT_SHIFT))
+            {
+                Enemy nearestEnemy = findNearestEnemy(enemies) ;
+                if ( nearestEnemy != null)
+                {
+                    Arrow arrow = new Arrow();
+                    arrow.SetDirect(this,nearestEnemy) ;
+                    arrows.add(arrow);
+                }
+            }
+        }
+        /**
+         * Draws the guardian on the game screen.
+         * @param frame The frame to record into.
+         */
+        public void Draw(RenderBuffer frame)
+        {
+            frame.sprite(GUARDIAN_IMAGE, this.X, this.Y);
+        }
+
+    }
+    /**
+     * The Enemy class represents the enemies in the game.
+     * It extends the Objects class and manages enemy movement, collision detection, and interaction with notes.
+     */
+    private class Enemy extends Objects
+    {
+        /**
+         * The direction of enemy movement.
+         * A flag indicating whether the enemy is firing arrows.
+         */
+        int direct = 1 ;
+        private boolean isFire = false ;
+        /**
+         * Creates a new enemy object with a random initial position and movement direction,
+         * drawn from the simulation's seeded generator.
+         */
+        private Enemy()
+        {
+            this.X  = random.nextInt(900) + 100;
+            this.Y  = random.nextInt(500) + 100;
+            int randomNumber = random.nextInt(2);
+            direct = (randomNumber == 0) ? -1 : 1;
+        }
+        /**
+         * Checks if the enemy is stealing the specified normal note.
+         * @param note The note to check for stealing.
+         * @return True if the note was stolen by this enemy, false otherwise.
+         */
+        private boolean stealNote(NormalNote note)
+        {
+            if ( !isFire && note.isAlive )
+            {
+                double dis = Calculate(note.X, note.currentY(), this.X, this.Y);
+                if ( dis <= 104 )
+                {
+                    note.isAlive = false ;
+                    return true ;
+                }
+            }
+            return false ;
+        }
+        /**
+         * Checks if the enemy stands on the spawn point of a lane, where its normal notes wait until they spawn.
+         * @param laneName The name of the lane.
+         * @return True if the notes waiting there would be stolen by this enemy, false otherwise.
+         */
+        private boolean reachesSpawn(String laneName)
+        {
+            return !isFire && Calculate(lane.getX(laneName), 100, this.X, this.Y) <= 104 ;
+        }
+        /**
+         * Handles enemy movement.
+         */
+        public void Move()
+        {
+            if ( !isFire )
+            {
+                if ( this.X < 100 ) direct = 1 ;
+                else if ( this.X > 900 ) direct = -1 ;
+                this.X += direct ;
+            }
+        }
+        /**
+         * Draws the enemy on the game screen.
+         * @param frame The frame to record into.
+         */
+        public void Draw(RenderBuffer frame)
+        {
+            if ( !isFire )
+            {
+                frame.sprite(ENEMY_IMAGE, this.X, this.Y);
+            }
+        }
+
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * SoundMixer mixes short hit sounds, one per note type, on top of the music.
+ * All sounds are decoded or synthesised into PCM arrays when the mixer is created, and playing a sound
+ * takes one of a fixed pool of voices, so triggering a sound never allocates. Triggers reach the mixer
+ * through a lock-free ring and start at the beginning of the next block, so a hit becomes audible at most
+ * one block (256 samples, about 6 ms) plus the output line's buffer after it is judged. The music can start
+ * part way into the song and is resampled by linear interpolation when the chart is played at a different rate.
+ *
+ * The same mixer renders offline: {@code java SoundMixer render <script> <out.wav>} mixes a scripted
+ * session, and {@code java SoundMixer check <script>} renders it without music and verifies that every
+ * hit starts on exactly the expected sample. A script is either an event log ({@code .sdlog}, whose TIMING
+ * hits are played) or a CSV of {@code <frame>,<Normal|Hold|Special|Bomb>} lines.
+ */
+public class SoundMixer
+{
+    /**
+     * The output format: 44.1 kHz, 16 bit, stereo, little endian.
+     * The number of sample frames mixed per block.
+     * The number of sample frames in one game frame at 60 frames per second.
+     */
+    public final static float SAMPLE_RATE = 44100f;
+    public final static int CHANNELS = 2;
+    public final static int BLOCK = 256;
+    public final static int SAMPLES_PER_GAME_FRAME = (int) SAMPLE_RATE / 60;
+    public final static AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+
+    /**
+     * Sound ids follow the game's NoteType ordinals.
+     */
+    public final static int NORMAL = 0;
+    public final static int HOLD = 1;
+    public final static int SPECIAL = 2;
+    public final static int BOMB = 3;
+    private final static String[] SOUND_NAMES = { "Normal", "Hold", "Special", "Bomb" };
+    private final static int VOICES = 16;
+
+    /**
+     * The hit sounds and the music as interleaved stereo samples.
+     */
+    private final short[][] sounds = new short[SOUND_NAMES.length][];
+    private final short[] music;
+
+    /**
+     * The voice pool: the sound each voice plays (-1 when free), the sample frame it starts at and how far
+     * it has played.
+     */
+    private final int[] voiceSound = new int[VOICES];
+    private final long[] voiceStart = new long[VOICES];
+    private final int[] voicePosition = new int[VOICES];
+    private long stolenVoices = 0;
+
+    /**
+     * Pending triggers: the sound id and the sample frame to start at (-1 for as soon as possible).
+     */
+    private final long[] triggers = new long[256];
+    private final AtomicLong triggerHead = new AtomicLong();
+    private final AtomicLong triggerTail = new AtomicLong();
+    private long droppedTriggers = 0;
+
+    private final int[] mix = new int[BLOCK * CHANNELS];
+    private final byte[] out = new byte[BLOCK * CHANNELS * 2];
+    private long blockStart = 0;
+    private volatile boolean musicPlaying = false;
+    private final AtomicBoolean musicRestart = new AtomicBoolean();
+    private volatile double musicStart = 0;
+    private volatile double musicRate = 1;
+
+    /**
+     * The music sample frame the next output sample frame is interpolated at, and how far it advances
+     * per output sample frame.
+     */
+    private double musicPosition = 0;
+    private double musicStep = 1;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a mixer.
+     * @param musicFile The music to play under the hit sounds, or null for none.
+     * @throws IOException If the music cannot be read.
+     */
+    public SoundMixer(Path musicFile) throws IOException
+    {
+        this(musicFile == null ? new short[0] : loadWav(musicFile));
+    }
+
+    /**
+     * Creates a mixer playing decoded music.
+     * @param music The music as interleaved stereo samples.
+     */
+    SoundMixer(short[] music)
+    {
+        this.music = music;
+        sounds[NORMAL] = tone(880, 0.06, 0.5);
+        sounds[HOLD] = tone(660, 0.09, 0.5);
+        sounds[SPECIAL] = chirp(600, 1400, 0.12, 0.45);
+        sounds[BOMB] = noise(0.15, 0.6, 1234);
+        Arrays.fill(voiceSound, -1);
+    }
+
+    /**
+     * Opens the mixer on the default audio output and starts its playback thread, with
+     * {@code -Dshadowdance.music} (default {@code res/track1.wav}) as the music.
+     * Audio is disabled with {@code -Dshadowdance.audio=off}.
+     * @return The mixer, or null if audio is disabled or no output line is available.
+     */
+    public static SoundMixer openDefault()
+    {
+        if ("off".equals(System.getProperty("shadowdance.audio"))) return null;
+        try {
+            Path musicFile = Paths.get(System.getProperty("shadowdance.music", "res/track1.wav"));
+            SoundMixer mixer = new SoundMixer(Files.exists(musicFile) ? musicFile : null);
+            SourceDataLine line = AudioSystem.getSourceDataLine(FORMAT);
+            line.open(FORMAT, mixer.out.length * 2);
+            line.start();
+            Thread thread = new Thread(() -> mixer.play(line), "sound-mixer");
+            thread.setDaemon(true);
+            thread.start();
+            return mixer;
+        } catch (IOException | LineUnavailableException | IllegalArgumentException e) {
+            System.err.println("audio disabled: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Plays a sound as soon as possible. Must only be called from the game thread; never allocates or blocks.
+     * @param sound The sound id.
+     */
+    public void trigger(int sound)
+    {
+        triggerAt(sound, -1);
+    }
+
+    /**
+     * Plays a sound starting at an exact sample frame, or as soon as possible if that frame has been mixed.
+     * Must only be called from one thread.
+     * @param sound The sound id.
+     * @param frame The sample frame to start at, or -1 for as soon as possible.
+     */
+    public void triggerAt(int sound, long frame)
+    {
+        long seq = triggerHead.get();
+        if (seq - triggerTail.get() >= triggers.length / 2)
+        {
+            ++droppedTriggers;
+            return;
+        }
+        int i = (int) (seq % (triggers.length / 2)) * 2;
+        triggers[i] = sound;
+        triggers[i + 1] = frame;
+        triggerHead.lazySet(seq + 1);
+    }
+
+    /**
+     * Starts the music from the beginning.
+     */
+    public void startMusic()
+    {
+        startMusic(0, 1);
+    }
+
+    /**
+     * Starts the music at a game frame of a chart played at a rate. Game frame f is f / 60 seconds into
+     * the play, which is that times the rate into the music, and the music is resampled to play the rate
+     * times as fast.
+     * @param startFrame The game frame the song starts at.
+     * @param rate The play rate of the chart (see {@link Chart#rate}).
+     */
+    public void startMusic(int startFrame, double rate)
+    {
+        musicStart = (double) startFrame * SAMPLES_PER_GAME_FRAME * rate;
+        musicRate = rate;
+        musicRestart.set(true);
+        musicPlaying = true;
+    }
+
+    /**
+     * Stops the music.
+     */
+    public void stopMusic()
+    {
+        musicPlaying = false;
+    }
+
+    /**
+     * Stops the playback thread.
+     */
+    public void close()
+    {
+        running = false;
+    }
+
+    /**
+     * The playback loop: mixes one block at a time and writes it to the line, which paces the loop.
+     * @param line The output line.
+     */
+    private void play(SourceDataLine line)
+    {
+        while (running)
+        {
+            mixBlock();
+            line.write(out, 0, out.length);
+        }
+        line.drain();
+        line.close();
+    }
+
+    /**
+     * Mixes the next block into {@link #out}.
+     */
+    private void mixBlock()
+    {
+        Arrays.fill(mix, 0);
+        takeTriggers();
+        if (musicRestart.getAndSet(false))
+        {
+            musicPosition = musicStart;
+            musicStep = musicRate;
+        }
+        if (musicPlaying) mixMusic();
+        for (int v = 0; v < VOICES; ++v)
+        {
+            if (voiceSound[v] < 0) continue;
+            short[] sound = sounds[voiceSound[v]];
+            int offset = (int) Math.max(0, voiceStart[v] - blockStart);
+            if (offset >= BLOCK) continue;
+            int position = voicePosition[v];
+            int n = Math.min((BLOCK - offset) * CHANNELS, sound.length - position);
+            for (int i = 0; i < n; ++i) mix[offset * CHANNELS + i] += sound[position + i];
+            voicePosition[v] = position + n;
+            if (voicePosition[v] >= sound.length) voiceSound[v] = -1;
+        }
+        for (int i = 0; i < mix.length; ++i)
+        {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+            out[2 * i] = (byte) sample;
+            out[2 * i + 1] = (byte) (sample >> 8);
+        }
+        blockStart += BLOCK;
+    }
+
+    /**
+     * Adds one block of music to {@link #mix}, interpolating between neighbouring music sample frames.
+     * At rate 1 from a whole sample frame the interpolation weight stays 0 and the music is copied as is.
+     */
+    private void mixMusic()
+    {
+        int frames = music.length / CHANNELS;
+        for (int i = 0; i < BLOCK; ++i)
+        {
+            int index = (int) musicPosition;
+            if (index >= frames)
+            {
+                musicPlaying = false;
+                return;
+            }
+            double weight = musicPosition - index;
+            for (int c = 0; c < CHANNELS; ++c)
+            {
+                int from = music[index * CHANNELS + c];
+                int to = index + 1 < frames ? music[(index + 1) * CHANNELS + c] : 0;
+                mix[i * CHANNELS + c] += weight == 0 ? from : (int) Math.round(from + (to - from) * weight);
+            }
+            musicPosition += musicStep;
+        }
+    }
+
+    /**
+     * Moves pending triggers onto voices, stealing the voice that has played longest when all are busy.
+     */
+    private void takeTriggers()
+    {
+        long seq = triggerTail.get();
+        long head = triggerHead.get();
+        for (; seq < head; ++seq)
+        {
+            int i = (int) (seq % (triggers.length / 2)) * 2;
+            int sound = (int) triggers[i];
+            long frame = triggers[i + 1];
+            int voice = -1;
+            for (int v = 0; v < VOICES && voice < 0; ++v)
+                if (voiceSound[v] < 0) voice = v;
+            if (voice < 0)
+            {
+                voice = 0;
+                for (int v = 1; v < VOICES; ++v)
+                    if (voicePosition[v] > voicePosition[voice]) voice = v;
+                ++stolenVoices;
+            }
+            voiceSound[voice] = sound;
+            voiceStart[voice] = Math.max(frame, blockStart);
+            voicePosition[voice] = 0;
+        }
+        triggerTail.lazySet(seq);
+    }
+
+    /**
+     * Renders a scripted session offline.
+     * @param hits The hits as pairs of sample frame and sound id, sorted by frame.
+     * @param withMusic Whether to mix the music under the hits.
+     * @return The rendered interleaved stereo samples.
+     */
+    public short[] render(long[][] hits, boolean withMusic)
+    {
+        return withMusic ? render(hits, 0, 1) : render(hits, false, 0, 1);
+    }
+
+    /**
+     * Renders a scripted session offline with the music started as {@link #startMusic(int, double)} starts it.
+     * @param hits The hits as pairs of sample frame and sound id, sorted by frame; frame 0 is the start frame.
+     * @param startFrame The game frame the song starts at.
+     * @param rate The play rate of the chart.
+     * @return The rendered interleaved stereo samples.
+     */
+    public short[] render(long[][] hits, int startFrame, double rate)
+    {
+        return render(hits, true, startFrame, rate);
+    }
+
+    /**
+     * Renders a scripted session offline, with or without the music.
+     */
+    private short[] render(long[][] hits, boolean withMusic, int startFrame, double rate)
+    {
+        long end = 0;
+        if (withMusic)
+        {
+            startMusic(startFrame, rate);
+            end = Math.max(0, (long) Math.ceil((music.length / CHANNELS - musicStart) / rate));
+        }
+        for (long[] hit : hits) end = Math.max(end, hit[0] + sounds[(int) hit[1]].length / CHANNELS);
+        int blocks = (int) ((end + BLOCK - 1) / BLOCK);
+        short[] result = new short[blocks * BLOCK * CHANNELS];
+        int next = 0;
+        for (int b = 0; b < blocks; ++b)
+        {
+            while (next < hits.length && hits[next][0] < blockStart + BLOCK)
+            {
+                triggerAt((int) hits[next][1], hits[next][0]);
+                ++next;
+            }
+            mixBlock();
+            ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(result, b * BLOCK * CHANNELS, BLOCK * CHANNELS);
+        }
+        return result;
+    }
+
+    /**
+     * @param sound The sound id.
+     * @return The length of a hit sound in sample frames.
+     */
+    public int soundFrames(int sound)
+    {
+        return sounds[sound].length / CHANNELS;
+    }
+
+    /**
+     * Reads a WAV file, converting it to the mixer's format.
+     * @param file The WAV file.
+     * @return The interleaved stereo samples.
+     * @throws IOException If the file cannot be read or converted.
+     */
+    private static short[] loadWav(Path file) throws IOException
+    {
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(FORMAT, AudioSystem.getAudioInputStream(file.toFile()))) {
+            byte[] bytes = in.readAllBytes();
+            short[] samples = new short[bytes.length / 2];
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+            return samples;
+        } catch (UnsupportedAudioFileException | IllegalArgumentException e) {
+            throw new IOException("cannot read " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes samples in the mixer's format to a WAV file.
+     * @param file The WAV file.
+     * @param samples The interleaved stereo samples.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeWav(File file, short[] samples) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        data.put("RIFF".getBytes()).putInt(36 + samples.length * 2).put("WAVE".getBytes());
+        data.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) CHANNELS)
+            .putInt((int) SAMPLE_RATE).putInt((int) SAMPLE_RATE * CHANNELS * 2).putShort((short) (CHANNELS * 2)).putShort((short) 16);
+        data.put("data".getBytes()).putInt(samples.length * 2);
+        data.asShortBuffer().put(samples);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(data.array());
+        }
+    }
+
+    /**
+     * Synthesises a decaying tone that starts at full amplitude, so its onset is its first sample.
+     */
+    private static short[] tone(double hz, double seconds, double volume)
+    {
+        int n = (int) (seconds * SAMPLE_RATE);
+        short[] samples = new short[n * CHANNELS];
+        for (int i = 0; i < n; ++i)
+        {
+            double envelope = Math.exp(-5.0 * i / n);
+            short value = (short) (Short.MAX_VALUE * volume * envelope * Math.cos(2 * Math.PI * hz * i / SAMPLE_RATE));
+            samples[i * CHANNELS] = samples[i * CHANNELS + 1] = value;
+        }
+        return samples;
+    }
+
+    /**
+     * Synthesises a decaying rising chirp.
+     */
+    private static short[] chirp(double fromHz, double toHz, double seconds, double volume)
+    {
+        int n = (int) (seconds * SAMPLE_RATE);
+        short[] samples = new short[n * CHANNELS];
+        double phase = 0;
+        for (int i = 0; i < n; ++i)
+        {
+            double hz = fromHz + (toHz - fromHz) * i / n;
+            short value = (short) (Short.MAX_VALUE * volume * Math.exp(-3.0 * i / n) * Math.cos(phase));
+            phase += 2 * Math.PI * hz / SAMPLE_RATE;
+            samples[i * CHANNELS] = samples[i * CHANNELS + 1] = value;
+        }
+        return samples;
+    }
+
+    /**
+     * Synthesises a decaying noise burst that starts at full amplitude.
+     */
+    private static short[] noise(double seconds, double volume, long seed)
+    {
+        int n = (int) (seconds * SAMPLE_RATE);
+        short[] samples = new short[n * CHANNELS];
+        Random random = new Random(seed);
+        for (int i = 0; i < n; ++i)
+        {
+            double value = i == 0 ? 1.0 : random.nextDouble() * 2 - 1;
+            samples[i * CHANNELS] = samples[i * CHANNELS + 1] = (short) (Short.MAX_VALUE * volume * Math.exp(-4.0 * i / n) * value);
+        }
+        return samples;
+    }
+
+    /**
+     * Reads the hits of a script as pairs of sample frame and sound id.
+     * @param script An event log or a CSV of {@code <frame>,<type>} lines.
+     * @return The hits sorted by sample frame.
+     * @throws IOException If the script cannot be read.
+     */
+    private static long[][] readScript(Path script) throws IOException
+    {
+        List<long[]> hits = new ArrayList<>();
+        if (script.toString().endsWith(".sdlog"))
+        {
+            EventLog.read(script, (frame, type, lane, a, b) -> {
+                if (type == EventLog.TIMING && !Float.isNaN(Float.intBitsToFloat(a)))
+                    hits.add(new long[] { (long) frame * SAMPLES_PER_GAME_FRAME, lane >>> 8 });
+            });
+        }
+        else
+        {
+            for (String line : Files.readAllLines(script))
+            {
+                String[] parts = line.split(",");
+                if (parts.length != 2) continue;
+                int sound = Arrays.asList(SOUND_NAMES).indexOf(parts[1].trim());
+                if (sound < 0) throw new IOException("unknown sound: " + line);
+                hits.add(new long[] { Long.parseLong(parts[0].trim()) * SAMPLES_PER_GAME_FRAME, sound });
+            }
+        }
+        hits.sort((x, y) -> Long.compare(x[0], y[0]));
+        return hits.toArray(new long[0][]);
+    }
+
+    /**
+     * Renders a scripted session to a WAV file, or checks its onsets.
+     * @param args {@code render <script> <out.wav>} or {@code check <script>}.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 3 && args[0].equals("render"))
+        {
+            Path musicFile = Paths.get(System.getProperty("shadowdance.music", "res/track1.wav"));
+            SoundMixer mixer = new SoundMixer(Files.exists(musicFile) ? musicFile : null);
+            long[][] hits = readScript(Paths.get(args[1]));
+            writeWav(new File(args[2]), mixer.render(hits, true));
+            System.out.printf("rendered %d hits to %s (%d stolen voices)%n", hits.length, args[2], mixer.stolenVoices);
+        }
+        else if (args.length == 2 && args[0].equals("check"))
+        {
+            SoundMixer mixer = new SoundMixer(new short[0]);
+            long[][] hits = readScript(Paths.get(args[1]));
+            short[] samples = mixer.render(hits, false);
+            int checked = 0, wrong = 0;
+            long silentUntil = 0;
+            for (long[] hit : hits)
+            {
+                long expected = hit[0];
+                boolean isolated = expected >= silentUntil;
+                silentUntil = Math.max(silentUntil, expected + mixer.soundFrames((int) hit[1]));
+                if (!isolated) continue;
+                boolean silentBefore = expected == 0 || samples[(int) (expected - 1) * CHANNELS] == 0;
+                boolean soundsAt = samples[(int) expected * CHANNELS] != 0;
+                ++checked;
+                if (!silentBefore || !soundsAt)
+                {
+                    ++wrong;
+                    System.out.printf("onset mismatch at sample %d (%s)%n", expected, SOUND_NAMES[(int) hit[1]]);
+                }
+            }
+            System.out.printf("%d hits, %d isolated onsets checked, %d wrong%n", hits.length, checked, wrong);
+            if (wrong > 0) System.exit(1);
+        }
+        else
+        {
+            System.err.println("usage: SoundMixer render <script> <out.wav> | SoundMixer check <script>");
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * TimingStats keeps per-session timing-accuracy analytics: signed timing error histograms per lane
+ * and per note type, early/late bias, rolling accuracy and the mean error of every chart section.
+ * Everything lives in fixed-size primitive arrays allocated up front, so recording a judgment
+ * never allocates.
+ *
+ * The error is the signed distance in pixels between the note and the hit line when it was judged:
+ * negative means the player was early, positive means late.
+ *
+ * Run {@code java TimingStats <dir>} to aggregate every saved event log under a directory in parallel
+ * and list, per chart, the sections that are systematically hit early or late.
+ */
+public class TimingStats
+{
+    /**
+     * Lane ids follow {@link EventLog#laneId(String)}; note types follow the game's NoteType ordinals.
+     */
+    public final static int LANES = 6;
+    public final static int TYPES = 4;
+    public final static String[] LANE_NAMES = { "-", "LEFT", "RIGHT", "UP", "DOWN", "SPECIAL" };
+    public final static String[] TYPE_NAMES = { "NORMAL", "HOLD", "SPECIAL", "BOMB" };
+
+    /**
+     * The histogram covers [-RANGE, RANGE] pixels in BIN_WIDTH pixel bins; errors outside are clamped.
+     * Chart sections are SECTION_FRAMES frames of the chart, keyed by the spawn frame of the note.
+     * The number of most recent judgments used for the rolling accuracy.
+     */
+    public final static int BIN_WIDTH = 10;
+    public final static int RANGE = 200;
+    public final static int BINS = 2 * RANGE / BIN_WIDTH + 1;
+    public final static int SECTION_FRAMES = 120;
+    public final static int SECTIONS = 1024;
+    public final static int ROLLING = 32;
+
+    /**
+     * Per-group counters, one group per lane and one per note type.
+     */
+    public static class Group
+    {
+        public final int[] histogram = new int[BINS];
+        public int count = 0;
+        public int early = 0;
+        public int late = 0;
+        public int misses = 0;
+        public double errorSum = 0;
+        public double errorSquareSum = 0;
+
+        private void add(double error)
+        {
+            ++count;
+            errorSum += error;
+            errorSquareSum += error * error;
+            if (error < 0) ++early;
+            else if (error > 0) ++late;
+            histogram[bin(error)]++;
+        }
+
+        private void merge(Group other)
+        {
+            for (int i = 0; i < BINS; ++i) histogram[i] += other.histogram[i];
+            count += other.count;
+            early += other.early;
+            late += other.late;
+            misses += other.misses;
+            errorSum += other.errorSum;
+            errorSquareSum += other.errorSquareSum;
+        }
+
+        /**
+         * @return The mean signed error, negative when the group is hit early on average.
+         */
+        public double bias()
+        {
+            return count == 0 ? 0 : errorSum / count;
+        }
+
+        /**
+         * @return The standard deviation of the error.
+         */
+        public double spread()
+        {
+            if (count == 0) return 0;
+            double mean = bias();
+            return Math.sqrt(Math.max(0, errorSquareSum / count - mean * mean));
+        }
+    }
+
+    private final Group[] lanes = new Group[LANES];
+    private final Group[] types = new Group[TYPES];
+    private final double[] sectionErrorSum = new double[SECTIONS];
+    private final int[] sectionCount = new int[SECTIONS];
+    private final double[] recent = new double[ROLLING];
+    private int recentNext = 0;
+    private int recentCount = 0;
+    private double recentSum = 0;
+    private double accuracySum = 0;
+    private int judged = 0;
+
+    public TimingStats()
+    {
+        for (int i = 0; i < LANES; ++i) lanes[i] = new Group();
+        for (int i = 0; i < TYPES; ++i) types[i] = new Group();
+    }
+
+    /**
+     * Records a hit.
+     * @param lane The lane id of the note.
+     * @param type The note type ordinal.
+     * @param spawnFrame The frame the note spawns at in the chart.
+     * @param error The signed timing error in pixels.
+     * @param distance The distance the judgment was scored with.
+     */
+    public void record(int lane, int type, int spawnFrame, double error, double distance)
+    {
+        lanes[clamp(lane, LANES)].add(error);
+        types[clamp(type, TYPES)].add(error);
+        int section = clamp(spawnFrame / SECTION_FRAMES, SECTIONS);
+        sectionErrorSum[section] += error;
+        sectionCount[section]++;
+        addAccuracy(distance <= 15 ? 1.0 : distance <= 50 ? 0.5 : 0.0);
+    }
+
+    /**
+     * Records a note that was never hit.
+     * @param lane The lane id of the note.
+     * @param type The note type ordinal.
+     */
+    public void recordMiss(int lane, int type)
+    {
+        lanes[clamp(lane, LANES)].misses++;
+        types[clamp(type, TYPES)].misses++;
+        addAccuracy(0.0);
+    }
+
+    /**
+     * Adds another session's statistics to this one. The rolling accuracy is not merged.
+     * @param other The statistics to add.
+     * @return This object.
+     */
+    public TimingStats merge(TimingStats other)
+    {
+        for (int i = 0; i < LANES; ++i) lanes[i].merge(other.lanes[i]);
+        for (int i = 0; i < TYPES; ++i) types[i].merge(other.types[i]);
+        for (int i = 0; i < SECTIONS; ++i)
+        {
+            sectionErrorSum[i] += other.sectionErrorSum[i];
+            sectionCount[i] += other.sectionCount[i];
+        }
+        accuracySum += other.accuracySum;
+        judged += other.judged;
+        return this;
+    }
+
+    public Group lane(int lane)
+    {
+        return lanes[lane];
+    }
+
+    public Group type(int type)
+    {
+        return types[type];
+    }
+
+    /**
+     * @return The accuracy over the last {@link #ROLLING} judgments, between 0 and 1.
+     */
+    public double rollingAccuracy()
+    {
+        return recentCount == 0 ? 0 : recentSum / recentCount;
+    }
+
+    /**
+     * @return The accuracy over every judgment, between 0 and 1.
+     */
+    public double accuracy()
+    {
+        return judged == 0 ? 0 : accuracySum / judged;
+    }
+
+    /**
+     * @return The number of judgments recorded, hits and misses.
+     */
+    public int judgedCount()
+    {
+        return judged;
+    }
+
+    public int sectionCount(int section)
+    {
+        return sectionCount[section];
+    }
+
+    public double sectionBias(int section)
+    {
+        return sectionCount[section] == 0 ? 0 : sectionErrorSum[section] / sectionCount[section];
+    }
+
+    /**
+     * Maps an error to its histogram bin.
+     * @param error The signed timing error in pixels.
+     * @return The bin index.
+     */
+    public static int bin(double error)
+    {
+        int i = (int) Math.floor((error + RANGE) / BIN_WIDTH + 0.5);
+        return clamp(i, BINS);
+    }
+
+    private void addAccuracy(double value)
+    {
+        recentSum += value - recent[recentNext];
+        recent[recentNext] = value;
+        recentNext = (recentNext + 1) % ROLLING;
+        if (recentCount < ROLLING) ++recentCount;
+        accuracySum += value;
+        ++judged;
+    }
+
+    private static int clamp(int i, int size)
+    {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+
+    /**
+     * The chart that judgments logged before any CHART record are attributed to, as in logs from older versions.
+     */
+    public final static String UNKNOWN_CHART = "(unknown chart)";
+
+    /**
+     * Adds the judgments of one session to the statistics of the charts they were made on, using the
+     * TIMING records of its event log and the CHART record of each level. A hit is scored with the distance
+     * of the JUDGMENT record the game logs just before it, as in the game, where a hold note is scored by
+     * the distance between its press and its release rather than by its timing error.
+     * @param charts The statistics by chart, added to.
+     * @param path The event log file.
+     */
+    public static void addEventLog(Map<String, TimingStats> charts, Path path)
+    {
+        EventLog.ChartName name = new EventLog.ChartName();
+        TimingStats[] current = { null };
+        double[] distance = { Double.NaN };
+        try {
+            EventLog.read(path, (frame, type, lane, a, b) -> {
+                if (type == EventLog.CHART)
+                {
+                    String chart = name.add(lane, a, b);
+                    if (chart != null) current[0] = charts.computeIfAbsent(chart, c -> new TimingStats());
+                    return;
+                }
+                if (type == EventLog.JUDGMENT)
+                {
+                    distance[0] = Float.intBitsToFloat(a);
+                    return;
+                }
+                if (type != EventLog.TIMING) return;
+                if (current[0] == null) current[0] = charts.computeIfAbsent(UNKNOWN_CHART, c -> new TimingStats());
+                float error = Float.intBitsToFloat(a);
+                if (Float.isNaN(error)) current[0].recordMiss(lane & 0xFF, lane >>> 8);
+                else current[0].record(lane & 0xFF, lane >>> 8, b, error, Double.isNaN(distance[0]) ? Math.abs(error) : distance[0]);
+                distance[0] = Double.NaN;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Merges statistics by chart into another set.
+     * @param into The statistics by chart, added to.
+     * @param other The statistics to add.
+     */
+    private static void mergeCharts(Map<String, TimingStats> into, Map<String, TimingStats> other)
+    {
+        for (Map.Entry<String, TimingStats> chart : other.entrySet())
+            into.merge(chart.getKey(), chart.getValue(), TimingStats::merge);
+    }
+
+    /**
+     * Aggregates every {@code .sdlog} file under a directory in parallel and prints, for every chart, the
+     * sections whose mean error is beyond a threshold. Every worker adds sessions into its own map of
+     * statistics, and the maps are merged at the end.
+     * @param args The log directory and optionally the bias threshold in pixels (default 10) and the
+     *             minimum number of hits for a section to be reported (default 20).
+     * @throws IOException If the directory cannot be listed.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("usage: TimingStats <log dir> [bias threshold px] [min hits]");
+            return;
+        }
+        double threshold = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+        int minHits = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(Paths.get(args[0]))) {
+            files = walk.filter(f -> f.toString().endsWith(".sdlog")).collect(Collectors.toList());
+        }
+        long start = System.nanoTime();
+        Map<String, TimingStats> charts = files.parallelStream()
+                                               .collect(TreeMap::new, TimingStats::addEventLog, TimingStats::mergeCharts);
+        TimingStats total = new TimingStats();
+        for (TimingStats chart : charts.values()) total.merge(chart);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d sessions, %d judgments in %.2f s, accuracy %.1f%%%n",
+                          files.size(), total.judgedCount(), seconds, total.accuracy() * 100);
+        for (int i = 1; i < LANES; ++i)
+        {
+            Group g = total.lane(i);
+            if (g.count + g.misses == 0) continue;
+            System.out.printf("%-8s hits %6d  misses %6d  bias %+6.1f px  spread %5.1f px%n",
+                              LANE_NAMES[i], g.count, g.misses, g.bias(), g.spread());
+        }
+        for (int i = 0; i < TYPES; ++i)
+        {
+            Group g = total.type(i);
+            if (g.count + g.misses == 0) continue;
+            System.out.printf("%-8s hits %6d  misses %6d  bias %+6.1f px  spread %5.1f px%n",
+                              TYPE_NAMES[i], g.count, g.misses, g.bias(), g.spread());
+        }
+        for (Map.Entry<String, TimingStats> entry : charts.entrySet())
+        {
+            TimingStats chart = entry.getValue();
+            System.out.printf("%s: %d judgments, mistimed sections (frames):%n", entry.getKey(), chart.judgedCount());
+            for (int s = 0; s < SECTIONS; ++s)
+            {
+                if (chart.sectionCount(s) < minHits || Math.abs(chart.sectionBias(s)) < threshold) continue;
+                System.out.printf("  %6d-%-6d hits %6d  bias %+6.1f px (%s)%n", s * SECTION_FRAMES,
+                                  (s + 1) * SECTION_FRAMES - 1, chart.sectionCount(s), chart.sectionBias(s),
+                                  chart.sectionBias(s) < 0 ? "early" : "late");
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * TripleBuffer hands complete frames from one producer thread to one consumer thread without locks.
+ * The producer fills the back buffer and publishes it; the consumer always gets the most recently
+ * published buffer. Neither side ever waits for the other, and a buffer is never read while it is written.
+ * @param <T> The buffer type.
+ */
+public class TripleBuffer<T>
+{
+    private final static int INDEX = 3;
+    private final static int DIRTY = 4;
+
+    private final Object[] buffers = new Object[3];
+    private final AtomicInteger middle = new AtomicInteger(2);
+    private int back = 0;
+    private int front = 1;
+
+    /**
+     * Creates the three buffers.
+     * @param factory Creates one buffer.
+     */
+    public TripleBuffer(Supplier<T> factory)
+    {
+        for (int i = 0; i < 3; ++i) buffers[i] = factory.get();
+    }
+
+    /**
+     * @return The buffer the producer writes to. Only the producer may call this.
+     */
+    @SuppressWarnings("unchecked")
+    public T back()
+    {
+        return (T) buffers[back];
+    }
+
+    /**
+     * Publishes the back buffer and gives the producer a free buffer to write next.
+     * Only the producer may call this.
+     */
+    public void publish()
+    {
+        back = middle.getAndSet(back | DIRTY) & INDEX;
+    }
+
+    /**
+     * Returns the most recently published buffer, which stays valid until the next call.
+     * Only the consumer may call this.
+     * @return The latest complete buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire()
+    {
+        if ((middle.get() & DIRTY) != 0) front = middle.getAndSet(front) & INDEX;
+        return (T) buffers[front];
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * ReplayVerifierTest records a corpus of replays headlessly, playing every chart in {@code res} with random
+ * keys at both speeds and a range of input offsets, and checks that every game ends and {@link ReplayVerifier}
+ * accepts every one of them, notices a changed score and rejects replays that claim an unfinished game, a foreign chart, a chart
+ * transform, a late start, another level, another speed, an input offset out of range or an end frame past the outcome.
+ * Run by {@code mvn test}, which fails when any check does. The corpus is recorded into a temporary directory that
+ * is deleted afterwards; {@code java ReplayVerifierTest <dir>} keeps it in a directory instead.
+ */
+public class ReplayVerifierTest
+{
+    /**
+     * The replays recorded per chart.
+     */
+    private final static int REPLAYS_PER_CHART = 50;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length > 0)
+        {
+            run(Files.createDirectories(Paths.get(args[0])));
+            return;
+        }
+        Path dir = Files.createTempDirectory("replays");
+        try {
+            run(dir);
+        } finally {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Records the corpus into a directory and verifies it.
+     * @param dir The directory.
+     * @throws IOException If a replay or chart cannot be read or written.
+     */
+    private static void run(Path dir) throws IOException
+    {
+        List<ChartLibrary.ChartInfo> library = ChartLibrary.scan(Paths.get("res"), dir.resolve(".chartindex"));
+        ReplayVerifier verifier = new ReplayVerifier(library);
+        int recorded = 0;
+        for (ChartLibrary.ChartInfo info : library)
+        {
+            Chart chart = Chart.read(info.path, "");
+            for (int i = 0; i < REPLAYS_PER_CHART; ++i)
+            {
+                Path file = dir.resolve(info.name() + "-" + i + ".sdreplay");
+                Replay replay = record(chart, info, i);
+                replay.write(file);
+                ReplayVerifier.Result result = verifier.verify(file);
+                check(replay.outcome != Simulation.State.PLAY, "%s: the game did not end", file);
+                check(result.valid, "%s: simulated %d %s, error %s", file, result.score, result.outcome, result.error);
+                ++recorded;
+            }
+        }
+        System.out.printf("ReplayVerifierTest: %d replays recorded in %s%n", recorded, dir);
+
+        ChartLibrary.ChartInfo info = library.get(0);
+        Chart chart = Chart.read(info.path, "");
+        Replay replay = record(chart, info, 0);
+        replay.score += 1;
+        ReplayVerifier.Result result = verifier.verify(write(dir, replay, "score"));
+        check(!result.valid && result.error == null, "a changed score is not a mismatch");
+        replay = record(chart, info, 0);
+        replay.endFrame = Integer.MAX_VALUE;
+        result = verifier.verify(write(dir, replay, "end"));
+        check(!result.valid && result.error == null, "an end frame past the outcome is not a mismatch");
+        replay = record(chart, info, 0);
+        replay.outcome = Simulation.State.PLAY;
+        rejected(verifier, write(dir, replay, "unfinished"), "an unfinished replay");
+        rejected(verifier, write(dir, copy(replay, "/etc/" + info.name() + ".txt", "", info.level, 4, 0, 0), "path"), "a foreign chart");
+        rejected(verifier, write(dir, copy(replay, info.path, "rate:1.1", info.level, 4, 0, 0), "transform"), "a chart transform");
+        rejected(verifier, write(dir, copy(replay, info.path, "", info.level, 4, 60, 0), "start"), "a late start");
+        rejected(verifier, write(dir, copy(replay, info.path, "", info.level % 3 + 1, 4, 0, 0), "level"), "another level");
+        rejected(verifier, write(dir, copy(replay, info.path, "", info.level, 7, 0, 0), "speed"), "another speed");
+        rejected(verifier, write(dir, copy(replay, info.path, "", info.level, 4, 0, 900000), "offset"), "a 900 ms input offset");
+
+        if (failures > 0) throw new AssertionError("ReplayVerifierTest: " + failures + " failures");
+        System.out.println("ReplayVerifierTest: ok");
+    }
+
+    /**
+     * Plays a chart to its end with random key presses, mid-frame presses included, recording a replay
+     * as the game does. Gives up where the verifier does if the game has not ended.
+     * @param seed The seed of the enemies and the keys; also picks the speed and the input offset.
+     * @return The replay, with outcome PLAY if the game did not end.
+     */
+    private static Replay record(Chart chart, ChartLibrary.ChartInfo info, int seed)
+    {
+        Random random = new Random(seed);
+        int speed = ReplayVerifier.SPEEDS[seed % ReplayVerifier.SPEEDS.length];
+        int offset = random.nextInt(2 * Calibration.MAX_OFFSET_MICROS + 1) - Calibration.MAX_OFFSET_MICROS;
+        Simulation simulation = new Simulation(chart, info.level, speed, seed, Simulation.NONE, false);
+        simulation.setInputOffset(offset);
+        Replay replay = new Replay(info.path, "", info.level, speed, seed, 0, offset);
+        simulation.recordTo(replay);
+        KeyEdges keys = new KeyEdges();
+        while (simulation.state() == Simulation.State.PLAY && simulation.frame() < info.length + ReplayVerifier.MAX_TAIL_FRAMES)
+        {
+            keys.set(press(random), press(random), 0);
+            simulation.step(keys);
+            keys.set(press(random), press(random), 0);
+            if (!keys.isEmpty()) simulation.judge(keys);
+        }
+        replay.finish(simulation);
+        return replay;
+    }
+
+    private static int press(Random random)
+    {
+        return random.nextInt(6) == 0 ? 1 << random.nextInt(6) : 0;
+    }
+
+    /**
+     * @return A replay claiming different settings with the same result and no input.
+     */
+    private static Replay copy(Replay replay, String chart, String transform, int level, int speed, int startFrame, int offset)
+    {
+        Replay copy = new Replay(chart, transform, level, speed, replay.seed, startFrame, offset);
+        copy.endFrame = replay.endFrame;
+        copy.score = replay.score;
+        copy.outcome = Simulation.State.WIN;
+        return copy;
+    }
+
+    private static Path write(Path dir, Replay replay, String name) throws IOException
+    {
+        Path file = dir.resolve("tampered-" + name + ".sdreplay");
+        replay.write(file);
+        return file;
+    }
+
+    private static void rejected(ReplayVerifier verifier, Path file, String what)
+    {
+        ReplayVerifier.Result result = verifier.verify(file);
+        check(!result.valid && result.error != null, "%s is not rejected", what);
+    }
+
+    private static void check(boolean condition, String format, Object... args)
+    {
+        if (!condition)
+        {
+            ++failures;
+            System.out.printf("FAIL " + format + "%n", args);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ResourceTrackerTest plays every level headlessly the way the game does, preloading the level's images and
+ * resolving every sprite of every recorded frame through {@link ResourceTracker}, then retries it, and fails
+ * if the level or the retry ends with more live resources than it started with. The native calls are replaced
+ * with stand-ins, so no window is needed. Run by {@code mvn test}, which fails when any check does.
+ */
+public class ResourceTrackerTest
+{
+    /**
+     * The charts played and their levels.
+     */
+    private final static String[] CHARTS = { "res/level1.csv", "res/level2.csv", "res/level3.csv" };
+
+    /**
+     * The most frames a level is played for, in case it never finishes.
+     */
+    private final static int MAX_FRAMES = 100000;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        ResourceTracker.newImage = path -> new Object();
+        ResourceTracker.newFont = (path, size) -> new Object();
+        for (int level = 1; level <= CHARTS.length; ++level)
+        {
+            Chart chart = Chart.read(CHARTS[level - 1], "");
+            Map<String, Integer> first = ResourceTracker.snapshot();
+            int frames = play(chart, level, 1);
+            ResourceTracker.report(first, "level " + level);
+            Map<String, Integer> retry = ResourceTracker.snapshot();
+            play(chart, level, 2);
+            int growth = ResourceTracker.report(retry, "level " + level + " retry");
+            check(growth == 0, "retrying level %d created %d more resources", level, growth);
+            check(frames > 0, "level %d drew nothing", level);
+        }
+        if (failures > 0) throw new AssertionError("ResourceTrackerTest: " + failures + " failures");
+        System.out.println("ResourceTrackerTest: ok");
+    }
+
+    /**
+     * Plays a level to its end with random key presses, as the game does: preloads its images, then steps
+     * it and draws every frame. The level must not create anything after the preload.
+     * @return The number of frames played.
+     */
+    private static int play(Chart chart, int level, long seed)
+    {
+        Simulation simulation = new Simulation(chart, level, 4, seed, Simulation.NONE, false);
+        for (int image : simulation.images()) ResourceTracker.asset(image);
+        Map<String, Integer> preloaded = ResourceTracker.snapshot();
+        Random random = new Random(seed);
+        KeyEdges keys = new KeyEdges();
+        RenderBuffer frame = new RenderBuffer();
+        int frames = 0;
+        while (simulation.state() == Simulation.State.PLAY && frames < MAX_FRAMES)
+        {
+            keys.set(random.nextInt(8) == 0 ? 1 << random.nextInt(6) : 0, random.nextInt(8) == 0 ? 1 << random.nextInt(6) : 0, 0);
+            simulation.step(keys);
+            frame.clear();
+            simulation.record(frame);
+            for (int i = 0; i < frame.size(); ++i) ResourceTracker.asset(frame.image(i));
+            ++frames;
+        }
+        check(simulation.state() != Simulation.State.PLAY, "level %d did not finish in %d frames", level, MAX_FRAMES);
+        int growth = ResourceTracker.report(preloaded, "level " + level + " play");
+        check(growth == 0, "level %d created %d resources after its preload", level, growth);
+        return frames;
+    }
+
+    private static void check(boolean condition, String format, Object... args)
+    {
+        if (!condition)
+        {
+            ++failures;
+            System.out.printf("FAIL " + format + "%n", args);
+        }
+    }
+}
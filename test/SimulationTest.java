@@ -0,0 +1,61 @@
+import java.io.IOException;
+
+/**
+ * SimulationTest plays charts headlessly with no input and checks that every normal and hold note is missed,
+ * at both speeds and with and without a rate transform: notes move several pixels per frame, so a note must
+ * be missed on the frame it crosses the bottom edge even if it never stands exactly on it.
+ * Run by {@code mvn test}, which fails when any check does.
+ */
+public class SimulationTest
+{
+    /**
+     * The charts played (without enemies, so no note is stolen) and their levels.
+     * The rate transforms played.
+     */
+    private final static String[] CHARTS = { "res/level1.csv", "res/level2.csv" };
+    private final static String[] TRANSFORMS = { "", "rate:0.75", "rate:1.1", "rate:1.25" };
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        for (int level = 1; level <= CHARTS.length; ++level)
+            for (String transform : TRANSFORMS)
+                for (int speed : ReplayVerifier.SPEEDS)
+                    everyNoteMissed(Chart.read(CHARTS[level - 1], transform), level, speed);
+        if (failures > 0) throw new AssertionError("SimulationTest: " + failures + " failures");
+        System.out.println("SimulationTest: ok");
+    }
+
+    /**
+     * Plays a chart with no input and checks that each of its normal and hold notes is missed exactly once.
+     */
+    private static void everyNoteMissed(Chart chart, int level, int speed)
+    {
+        int notes = 0;
+        for (int i = 0; i < chart.noteCount(); ++i)
+            if (chart.type(i) == Simulation.NoteType.NORMAL || chart.type(i) == Simulation.NoteType.HOLD
+                && chart.features(level).contains(Chart.Feature.HOLDS)) ++notes;
+        int[] misses = { 0 };
+        Simulation simulation = new Simulation(chart, level, speed, 1, new Simulation.Listener() {
+            @Override
+            public void event(int frame, short type, int lane, int a, int b)
+            {
+                if (type == EventLog.TIMING && Float.isNaN(Float.intBitsToFloat(a))) ++misses[0];
+            }
+        }, false);
+        KeyEdges keys = new KeyEdges();
+        while (simulation.state() == Simulation.State.PLAY && simulation.frame() < 100000) simulation.step(keys);
+        check(misses[0] == notes, "%s %s at speed %d: %d of %d notes missed, score %d",
+            chart.path, chart.transform, speed, misses[0], notes, simulation.currentScore());
+    }
+
+    private static void check(boolean condition, String format, Object... args)
+    {
+        if (!condition)
+        {
+            ++failures;
+            System.out.printf("FAIL " + format + "%n", args);
+        }
+    }
+}
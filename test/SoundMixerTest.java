@@ -0,0 +1,116 @@
+/**
+ * SoundMixerTest renders sessions offline against a synthetic song whose every sample frame holds its own
+ * index, so the rendered output shows exactly which part of the song played when. It checks that the music
+ * starts at the start frame, plays at the chart rate, and that hits land on the song where they were scheduled.
+ * Run by {@code mvn test}, which fails when any check does.
+ */
+public class SoundMixerTest
+{
+    /**
+     * The length of the synthetic song in sample frames, short enough for every index to fit in a sample.
+     */
+    private final static int SONG_FRAMES = 30000;
+
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        musicStartsAtStartFrame();
+        musicPlaysAtRate();
+        hitsLandOnTheSong();
+        if (failures > 0) throw new AssertionError("SoundMixerTest: " + failures + " failures");
+        System.out.println("SoundMixerTest: ok");
+    }
+
+    /**
+     * Starting at game frame 10 skips the first 10 game frames of the song.
+     */
+    private static void musicStartsAtStartFrame()
+    {
+        short[] out = new SoundMixer(ramp()).render(new long[0][], 10, 1);
+        int start = 10 * SoundMixer.SAMPLES_PER_GAME_FRAME;
+        for (int i = 0; i < SONG_FRAMES - start; ++i)
+            if (left(out, i) != start + i)
+            {
+                fail("start frame 10: sample %d plays song frame %d, expected %d", i, left(out, i), start + i);
+                return;
+            }
+        check(left(out, SONG_FRAMES - start) == 0, "start frame 10: music continues past the end of the song");
+    }
+
+    /**
+     * At rate 1.25 the song plays 25% faster, from 1.25 times as far into the song as the start frame.
+     */
+    private static void musicPlaysAtRate()
+    {
+        double rate = 1.25;
+        short[] out = new SoundMixer(ramp()).render(new long[0][], 8, rate);
+        double start = 8 * SoundMixer.SAMPLES_PER_GAME_FRAME * rate;
+        int played = (int) Math.ceil((SONG_FRAMES - 1 - start) / rate);
+        for (int i = 0; i < played; ++i)
+        {
+            double expected = start + i * rate;
+            if (Math.abs(left(out, i) - expected) > 0.5)
+            {
+                fail("rate %.2f: sample %d plays song frame %d, expected %.2f", rate, i, left(out, i), expected);
+                return;
+            }
+        }
+        check(out.length / SoundMixer.CHANNELS < (SONG_FRAMES - start) / rate + SoundMixer.BLOCK,
+            "rate %.2f: rendered %d sample frames, the song ends after %.0f", rate, out.length / SoundMixer.CHANNELS, (SONG_FRAMES - start) / rate);
+    }
+
+    /**
+     * A hit scheduled for a game frame starts on the sample that plays the song at that frame, with the
+     * music playing under it: the render with hits differs from the music alone first at the hit.
+     */
+    private static void hitsLandOnTheSong()
+    {
+        double rate = 0.8;
+        int startFrame = 5;
+        int[] hitFrames = { 3, 17, 29 };
+        long[][] hits = new long[hitFrames.length][];
+        for (int h = 0; h < hits.length; ++h)
+            hits[h] = new long[] { (long) hitFrames[h] * SoundMixer.SAMPLES_PER_GAME_FRAME, SoundMixer.NORMAL };
+        SoundMixer mixer = new SoundMixer(ramp());
+        short[] music = mixer.render(new long[0][], startFrame, rate);
+        short[] mixed = new SoundMixer(ramp()).render(hits, startFrame, rate);
+        int from = 0;
+        for (int h = 0; h < hits.length; ++h)
+        {
+            int onset = from;
+            while (onset < music.length / SoundMixer.CHANNELS && left(mixed, onset) == left(music, onset)) ++onset;
+            check(onset == hits[h][0], "hit at game frame %d starts at sample %d, expected %d", hitFrames[h], onset, hits[h][0]);
+            double songFrame = (startFrame + hitFrames[h]) * SoundMixer.SAMPLES_PER_GAME_FRAME * rate;
+            check(Math.abs(left(music, onset) - songFrame) <= 0.5,
+                "hit at game frame %d plays over song frame %d, expected %.1f", hitFrames[h], left(music, onset), songFrame);
+            from = (int) hits[h][0] + mixer.soundFrames(SoundMixer.NORMAL);
+        }
+    }
+
+    /**
+     * @return A stereo song whose sample frame i holds the value i on both channels.
+     */
+    private static short[] ramp()
+    {
+        short[] samples = new short[SONG_FRAMES * SoundMixer.CHANNELS];
+        for (int i = 0; i < samples.length; ++i) samples[i] = (short) (i / SoundMixer.CHANNELS);
+        return samples;
+    }
+
+    private static int left(short[] samples, int frame)
+    {
+        return samples[frame * SoundMixer.CHANNELS];
+    }
+
+    private static void check(boolean condition, String format, Object... args)
+    {
+        if (!condition) fail(format, args);
+    }
+
+    private static void fail(String format, Object... args)
+    {
+        ++failures;
+        System.out.printf("FAIL " + format + "%n", args);
+    }
+}